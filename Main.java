@@ -1,46 +1,64 @@
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.function.Function;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import org.apache.poi.ss.usermodel.CellType;
-import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.util.CellReference;
-import org.apache.poi.xssf.usermodel.XSSFCell;
-import org.apache.poi.xssf.usermodel.XSSFName;
-import org.apache.poi.xssf.usermodel.XSSFRow;
-import org.apache.poi.xssf.usermodel.XSSFSheet;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.xwpf.usermodel.XWPFDocument;
-import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTSheetPr;
 
+import com.forenzix.common.MappedZip;
 import com.forenzix.common.Pair;
+import com.forenzix.common.Pipeline;
 import com.forenzix.common.Slot;
-import com.forenzix.excel.ReferenceType;
+import com.forenzix.excel.Address;
+import com.forenzix.excel.NameIndex;
+import com.forenzix.excel.Range;
+import com.forenzix.excel.Recalculation;
+import com.forenzix.excel.StreamingWorkbookReader;
+import com.forenzix.excel.WorkbookSnapshot;
+import com.forenzix.excel.WorkbookSnapshot.Cell;
 import com.forenzix.interpreter.Interpreter;
+import com.forenzix.interpreter.Sequence;
 import com.forenzix.interpreter.TokenType;
 import com.forenzix.interpreter.Tokeniser;
 import com.forenzix.interpreter.Interpreter.MemberAccessor;
+import com.forenzix.word.CompiledTemplate;
 import com.forenzix.word.Extractor;
 import com.forenzix.word.Preprocessor;
 import com.forenzix.word.Replacer;
@@ -69,6 +87,38 @@ public class Main {
 
     public static int MAX_THREAD_COUNT = 0; // Set to 0 to disable multi-threading
 
+    // Runs the tags of a report. Tags run one after the other unless a number of
+    // tag threads is given, in which case independent tags run concurrently on a
+    // pool that lives as long as the batch.
+    public static int TAG_THREAD_COUNT = 0;
+    static Executor TAG_EXECUTOR = Runnable::run;
+
+    // How reports are scheduled. "pool" runs every report start to finish on a
+    // fixed pool of MAX_THREAD_COUNT threads. "pipeline" runs every stage on
+    // threads of its own, so that I/O and compute overlap, with at most QUEUE_DEPTH
+    // reports waiting between two stages, which caps how many are held in memory.
+    // "staged" reads and writes files on virtual threads, and does everything else
+    // on a pool of one thread per core, with at most QUEUE_DEPTH reports read or
+    // written ahead of it.
+    public static String SCHEDULER = "pool";
+    static final boolean VIRTUAL_THREADS = Runtime.version().feature() >= 21;
+    public static int QUEUE_DEPTH = 2;
+
+    // Whether workbooks are streamed, loading only the cells the template refers
+    // to, rather than read in full.
+    public static boolean STREAM_WORKBOOKS = false;
+
+    // Whether workbooks are read in full with the formula cells the template
+    // refers to recalculated, rather than read with their cached results.
+    public static boolean RECALCULATE = false;
+
+    // Where the name indices of workbooks are kept, if anywhere. Each index is
+    // named after the SHA-256 digest of its workbook.
+    public static Path INDEX_DIR = null;
+
+    // How many parsed cell addresses a report keeps.
+    static final int ADDRESS_CACHE_SIZE = 4096;
+
     public static void main(String[] args) throws IOException {
         final long start = System.nanoTime();
         try {
@@ -78,6 +128,16 @@ public class Main {
             e.printStackTrace();
         }
 
+        if (MemberMemo.HITS.sum() + MemberMemo.MISSES.sum() > 0) {
+            System.out.println("Sheet members: %d resolved, %d memoised.".formatted(MemberMemo.MISSES.sum(), MemberMemo.HITS.sum()));
+        }
+        if (Recalculation.KEPT.sum() > 0) {
+            System.out.println(ANSI_YELLOW + "Formula cells: %d recalculated, %d could not be and kept their cached results."
+                    .formatted(Recalculation.RECALCULATED.sum(), Recalculation.KEPT.sum()) + ANSI_RESET);
+        } else if (Recalculation.RECALCULATED.sum() > 0) {
+            System.out.println("Formula cells: %d recalculated.".formatted(Recalculation.RECALCULATED.sum()));
+        }
+
         final Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
         System.out.println("Total time taken: %d.%03d seconds".formatted(elapsed.toSeconds(), elapsed.toMillisPart()));
         System.out.print("Press Enter to close this window.");
@@ -106,6 +166,30 @@ public class Main {
                     case "-calc":
                         state = "c";
                         break;
+                    case "-b":
+                    case "-backend":
+                        state = "b";
+                        break;
+                    case "-p":
+                    case "-parallel-tags":
+                        state = "p";
+                        break;
+                    case "-s":
+                    case "-scheduler":
+                        state = "s";
+                        break;
+                    case "-q":
+                    case "-queue-depth":
+                        state = "q";
+                        break;
+                    case "-r":
+                    case "-reader":
+                        state = "r";
+                        break;
+                    case "-i":
+                    case "-index":
+                        state = "i";
+                        break;
                     case "-o":
                     case "-out":
                     case "-output":
@@ -132,6 +216,12 @@ public class Main {
                     argmap.computeIfAbsent(state, _k -> new ArrayList<String>()).add(arg);
                     break;
                 case "m":
+                case "b":
+                case "p":
+                case "s":
+                case "q":
+                case "r":
+                case "i":
                     argmap.computeIfAbsent(state, _k -> new ArrayList<String>()).add(arg);
                     state = "a";
                     break;
@@ -151,6 +241,46 @@ public class Main {
             MAX_THREAD_COUNT = Integer.parseInt(argmap.get("m").get(0));
         }
 
+        if (argmap.containsKey("p") && argmap.get("p").size() >= 1) {
+            TAG_THREAD_COUNT = Integer.parseInt(argmap.get("p").get(0));
+        }
+
+        if (argmap.containsKey("s") && argmap.get("s").size() >= 1) {
+            SCHEDULER = argmap.get("s").get(0).toLowerCase();
+            if (!SCHEDULER.equals("pool") && !SCHEDULER.equals("pipeline") && !SCHEDULER.equals("staged")) {
+                throw new IllegalArgumentException("Unknown scheduler: %s".formatted(SCHEDULER));
+            }
+        }
+
+        if (argmap.containsKey("q") && argmap.get("q").size() >= 1) {
+            QUEUE_DEPTH = Integer.parseInt(argmap.get("q").get(0));
+            if (QUEUE_DEPTH < 1) {
+                throw new IllegalArgumentException("Queue depth must be at least 1.");
+            }
+        }
+
+        if (argmap.containsKey("r") && argmap.get("r").size() >= 1) {
+            final String reader = argmap.get("r").get(0).toLowerCase();
+            if (!reader.equals("full") && !reader.equals("stream") && !reader.equals("recalc")) {
+                throw new IllegalArgumentException("Unknown workbook reader: %s".formatted(reader));
+            }
+            STREAM_WORKBOOKS = reader.equals("stream");
+            RECALCULATE = reader.equals("recalc");
+        }
+
+        if (argmap.containsKey("i") && argmap.get("i").size() >= 1) {
+            INDEX_DIR = Paths.get(argmap.get("i").get(0));
+        }
+
+        if (argmap.containsKey("b") && argmap.get("b").size() >= 1) {
+            final String backend = argmap.get("b").get(0);
+            try {
+                Interpreter.setDefaultBackend(Interpreter.Backend.valueOf(backend.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown backend: %s".formatted(backend));
+            }
+        }
+
         return argmap;
     }
 
@@ -171,6 +301,10 @@ public class Main {
             throw new IllegalArgumentException("One or more required files was null");
         }
 
+        if (INDEX_DIR != null) {
+            Files.createDirectories(INDEX_DIR);
+        }
+
         if (argmap.get("o") == null) {
             outfiles = wbfiles.stream()
                 .map((wb) -> {
@@ -185,14 +319,39 @@ public class Main {
             outfiles = argmap.get("o");
         }
 
+        // The template is read and compiled once, then shared by every report.
+        final CompiledTemplate template = CompiledTemplate.compile(docfile);
+
         final List<ReporterInstance> tasks = new ArrayList<>();
         final boolean singleReport = wbfiles.size() == 1;
         for (int i = 0; i < wbfiles.size(); i += 1) {
             final String wb = wbfiles.get(i), out = outfiles.get(i);
-            tasks.add(new ReporterInstance(wb, out, docfile, singleReport));
+            tasks.add(new ReporterInstance(wb, out, template, singleReport));
         }
 
         if (!singleReport) System.out.println("Generating %d reports.".formatted(wbfiles.size()));
+        final ForkJoinPool tagPool = TAG_THREAD_COUNT > 1 ? new ForkJoinPool(TAG_THREAD_COUNT) : null;
+        TAG_EXECUTOR = tagPool != null ? tagPool : Runnable::run;
+        try {
+            produce(tasks);
+        } finally {
+            TAG_EXECUTOR = Runnable::run;
+            if (tagPool != null) {
+                tagPool.shutdown();
+            }
+        }
+    }
+
+    static void produce(List<ReporterInstance> tasks) throws InterruptedException {
+        if (SCHEDULER.equals("pipeline")) {
+            producePipelined(tasks);
+            return;
+        }
+        if (SCHEDULER.equals("staged")) {
+            produceStaged(tasks);
+            return;
+        }
+
         if (MAX_THREAD_COUNT > 1) System.out.println("Using %d threads.".formatted(MAX_THREAD_COUNT));
         final ExecutorService ex = Executors.newFixedThreadPool(Math.max(MAX_THREAD_COUNT, 1));
         try {
@@ -204,6 +363,114 @@ public class Main {
         }
     }
 
+    /**
+     * Produces the given reports through a pipeline of bounded queues: workbooks
+     * are loaded, their tags evaluated, documents rendered, and reports written by
+     * separate stages. A report only holds its workbook until its tags have been
+     * evaluated, and its document until it has been written. With at most
+     * QUEUE_DEPTH reports waiting between two stages, the number of workbooks and
+     * documents in memory is bounded however large the batch is.
+     */
+    static void producePipelined(List<ReporterInstance> tasks) throws InterruptedException {
+        final int cores = MAX_THREAD_COUNT > 1 ? MAX_THREAD_COUNT : Runtime.getRuntime().availableProcessors();
+        System.out.println("Using %d threads per stage, queues of %d.".formatted(cores, QUEUE_DEPTH));
+
+        // Every stage handles its own failures, reports them, and drops the report.
+        Pipeline.of(tasks, QUEUE_DEPTH)
+                .then("load", cores, task -> task.stage(() -> Pair.of(task, loadWorkbook(Paths.get(task.wb), task.template))))
+                .then("evaluate", cores, loaded -> loaded.key.stage(() -> Pair.of(loaded.key,
+                        evaluate(Paths.get(loaded.key.wb), loaded.value, loaded.key.template, loaded.key.singleReport))))
+                .then("render", cores, evaluated -> evaluated.key.stage(
+                        () -> Pair.of(evaluated.key, render(evaluated.value.key, evaluated.value.value))))
+                .then("write", 1, rendered -> rendered.key.stage(() -> {
+                    write(rendered.value, Paths.get(rendered.key.out));
+                    return rendered.key;
+                }))
+                .drain(ReporterInstance::succeeded);
+    }
+
+    /**
+     * Produces the given reports in three stages, so that file I/O overlaps with
+     * compute: the workbook file is read ahead on an I/O thread; the workbook is
+     * parsed, its tags evaluated, and the document rendered and serialised on a
+     * pool of one thread per core (or MAX_THREAD_COUNT); and the report is written
+     * on an I/O thread.
+     * <p>
+     * Reading ahead only brings the file into the page cache, and a serialised
+     * report is a fraction of the size of its document, so neither holds much
+     * memory. At most QUEUE_DEPTH reports are read ahead of, or wait to be
+     * written behind, the reports being computed.
+     */
+    static void produceStaged(List<ReporterInstance> tasks) throws InterruptedException {
+        final int cores = MAX_THREAD_COUNT > 1 ? MAX_THREAD_COUNT : Runtime.getRuntime().availableProcessors();
+        final ExecutorService io = ioExecutor(), compute = Executors.newFixedThreadPool(cores);
+        final Semaphore inFlight = new Semaphore(cores + QUEUE_DEPTH);
+        System.out.println("Using %d compute threads, %s threads for file I/O, queues of %d.".formatted(cores,
+                VIRTUAL_THREADS ? "virtual" : "platform", QUEUE_DEPTH));
+
+        final List<CompletableFuture<Void>> reports = new ArrayList<>(tasks.size());
+        try {
+            for (ReporterInstance task : tasks) {
+                inFlight.acquire();
+                reports.add(CompletableFuture
+                        .supplyAsync(() -> task.stage(() -> {
+                            prefetch(Paths.get(task.wb));
+                            return task;
+                        }), io)
+                        .thenApplyAsync(read -> read == null ? null : task.stage(() -> generate(task)), compute)
+                        .thenAcceptAsync(report -> {
+                            if (report != null && task.stage(() -> Files.write(Paths.get(task.out), report)) != null) {
+                                task.succeeded();
+                            }
+                        }, io)
+                        .whenComplete((done, e) -> inFlight.release()));
+            }
+            CompletableFuture.allOf(reports.toArray(new CompletableFuture<?>[reports.size()])).join();
+        } finally {
+            io.shutdown();
+            compute.shutdown();
+        }
+    }
+
+    // Virtual threads only exist from Java 21, which this program is not built
+    // against, so their executor is looked up when the runtime is recent enough.
+    // Older runtimes do I/O on platform threads, of which there are at most as
+    // many as reports in flight.
+    static ExecutorService ioExecutor() {
+        if (!VIRTUAL_THREADS) {
+            return Executors.newCachedThreadPool();
+        }
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual threads on Java " + Runtime.version(), e);
+        }
+    }
+
+    // Reads a file through once, keeping nothing, so that it is in the page cache
+    // by the time it is parsed.
+    static void prefetch(Path file) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        }
+    }
+
+    // Produces a report, serialised, from its workbook file.
+    private static byte[] generate(ReporterInstance task) throws IOException {
+        final Path wbpath = Paths.get(task.wb);
+        final Pair<XWPFDocument, List<Replacer>> evaluated = evaluate(wbpath, loadWorkbook(wbpath, task.template),
+                task.template, task.singleReport);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final XWPFDocument report = render(evaluated.key, evaluated.value)) {
+            report.write(out);
+        }
+        return out.toByteArray();
+    }
+
     
     final static Object 
     TOSTRINGIFY = new Object(),
@@ -215,12 +482,19 @@ public class Main {
     ROW = new Object(),
     COLUMN = new Object(),
     FORMULIFY = new Object(),
+    SUM = new Object(),
+    MIN = new Object(),
+    MAX = new Object(),
+    AVERAGE = new Object(),
+    COUNT = new Object(),
     DUPLICATE_NAME = new Object();
 
+    final static BiFunction<Slot<Interpreter>, MemberMemo, MemberAccessor<Object, String, Object>> makeMaccess = (in, memo) -> (obj, member) -> memberAccess(in, memo, obj, member);
+
     @SuppressWarnings({ "rawtypes", "unchecked" })
-    final static Function<Slot<Interpreter>, MemberAccessor<Object, String, Object>> makeMaccess = (in) -> (obj, member) -> {
+    private static Object memberAccess(Slot<Interpreter> in, MemberMemo memo, Object obj, String member) {
         if (obj instanceof Pair) {
-            final Pair<Sheet, Map<String, XSSFCell>> sheetPair = (Pair) obj;
+            final Pair<WorkbookSnapshot.Sheet, Map<String, Object>> sheetPair = (Pair) obj;
 
             // There are multiple ways to access data in an Excel sheet
             // 1. It is a named range
@@ -228,28 +502,69 @@ public class Main {
                 return sheetPair.value.get(member);
             }
 
+            // Members that cannot be variables resolve the same way every time.
+            final Object memoised = memo.get(sheetPair, member);
+            if (memoised != MemberMemo.UNKNOWN) {
+                return memoised;
+            }
+
             // 2. The given member is a variable that contains a valid address
-            final Object memVal = in.value().findVariable(member).orElse(Map.of()).get(member);
-            if (memVal != null && memVal instanceof String && reftype((String) memVal) == ReferenceType.CELL) {
-                return cell((XSSFSheet) sheetPair.key, (String) memVal);
+            final Object memVal = in.value().defined(member) ? in.value().getVariable(member) : null;
+            if (memVal != null && memVal instanceof String) {
+                final long address = memo.addresses.parse((String) memVal);
+                if (address != Address.INVALID) {
+                    return sheetPair.key.getCell(Address.row(address), Address.column(address));
+                }
+                final Range range = Range.parse(sheetPair.key, (String) memVal);
+                if (range != null) {
+                    return range;
+                }
             }
 
-            // 3. It is a valid cell reference (eg. Home.A1)
-            if (reftype(member) == ReferenceType.CELL) {
-                return cell((XSSFSheet) sheetPair.key, member);
+            // 3. It is a valid cell reference (eg. Home.A1), or range (Home.B2:B500)
+            final long address = memo.addresses.parse(member);
+            if (address != Address.INVALID) {
+                return memo.put(sheetPair, member, sheetPair.key.getCell(Address.row(address), Address.column(address)));
+            }
+            final Range range = Range.parse(sheetPair.key, member);
+            if (range != null) {
+                return memo.put(sheetPair, member, range);
             }
 
             throw new IllegalArgumentException("Sheet member \"" + member +
-                    "\" is not a defined name, or a valid cell address (like A1).");
+                    "\" is not a defined name, or a valid cell address (like A1) or range (like B2:B500).");
         }
 
-        final Object thing = in.value().getVariable(member);
+        // The member is a variable (num.x). A member with periods is looked up
+        // whole first, like any variable (num.Home.A1 reads the variable
+        // "Home.A1" if there is one). Otherwise, it is a member of a member
+        // (num.Home.A1, sum.Home.B2:B500): its first segment is a variable, and
+        // the rest is a member of that, resolved by the same rules.
+        final int period = member.indexOf('.');
+        final Object thing = period < 0 || in.value().defined(member) ? in.value().getVariable(member)
+                : memberAccess(in, memo, in.value().getVariable(member.substring(0, period)), member.substring(period + 1));
         if (obj == TOSTRINGIFY) {
             return String.valueOf(thing);
         }
 
-        if (thing instanceof XSSFCell) {
-            final XSSFCell cell = (XSSFCell) thing;
+        // Aggregates run over the numbers of a range, in one go.
+        if (thing instanceof Range) {
+            final Range range = (Range) thing;
+
+            if (obj == SUM)
+                return range.sum();
+            else if (obj == MIN)
+                return range.min();
+            else if (obj == MAX)
+                return range.max();
+            else if (obj == AVERAGE)
+                return range.average();
+            else if (obj == COUNT)
+                return range.count();
+        }
+
+        if (thing instanceof Cell) {
+            final Cell cell = (Cell) thing;
 
             if (obj == INTIFY
                     && (cell.getCellType() == CellType.NUMERIC || cell.getCellType() == CellType.FORMULA)) {
@@ -278,66 +593,250 @@ public class Main {
         }
 
         return null;
-    };
+    }
 
     public static void produceReport(String wbfile, String outfile, String docfile, boolean printLogs) throws FileNotFoundException, IOException {
+        produceReport(wbfile, outfile, CompiledTemplate.compile(docfile), printLogs);
+    }
+
+    public static void produceReport(String wbfile, String outfile, CompiledTemplate compiled, boolean printLogs) throws FileNotFoundException, IOException {
+        final Path wbpath = Paths.get(wbfile);
+        final Pair<XWPFDocument, List<Replacer>> evaluated = evaluate(wbpath, loadWorkbook(wbpath, compiled), compiled, printLogs);
+        write(render(evaluated.key, evaluated.value), Paths.get(outfile));
+    }
+
+    /**
+     * Reads a workbook file, and resolves its names. When
+     * streaming, only the cells the template refers to are loaded: defined names
+     * mentioned by a tag, and cell addresses and ranges written in a tag, as a
+     * member of a sheet or as a string. Cells whose address is computed while a tag
+     * runs are not loaded; reports that read one are evaluated again against the
+     * whole workbook (see {@link #evaluate(Path, Pair, CompiledTemplate, boolean)}).
+     * <p>
+     * When recalculating, the workbook is read in full, and the formula cells the
+     * template refers to are recalculated, along with every formula cell they
+     * depend on. Cells whose address is computed while a tag runs keep their
+     * cached results.
+     * <p>
+     * With an index directory, names are read from the index of the workbook if it
+     * has one, and resolved and saved to a new index otherwise.
+     * <p>
+     * Workbooks are opened from their files rather than read into memory first.
+     * When streaming, the file is memory-mapped, and only the parts holding the
+     * cells the template refers to are ever inflated.
+     */
+    static Pair<WorkbookSnapshot, NameIndex> loadWorkbook(Path wbfile, CompiledTemplate compiled) throws IOException {
+        if (RECALCULATE) {
+            return recalculateWorkbook(wbfile, compiled);
+        }
+        if (!STREAM_WORKBOOKS) {
+            return readWorkbook(wbfile);
+        }
+        try (final MappedZip zip = MappedZip.open(wbfile)) {
+            return streamWorkbook(wbfile, zip, compiled);
+        }
+    }
+
+    private static Pair<WorkbookSnapshot, NameIndex> readWorkbook(Path wbfile) throws IOException {
+        return index(wbfile, cached -> WorkbookSnapshot.read(wbfile));
+    }
+
+    private static Pair<WorkbookSnapshot, NameIndex> streamWorkbook(Path file, MappedZip wbfile, CompiledTemplate compiled) throws IOException {
+        final Set<String> references = compiled.references();
+        final List<CellReference> addresses = new ArrayList<>();
+        final List<String> ranges = new ArrayList<>();
+        referencedCells(compiled, addresses, ranges);
+
+        // Names come from the index when there is one, apart from named areas,
+        // which are not indexed. An index is only saved when the cells of every
+        // name have been loaded.
+        return index(file, cached -> StreamingWorkbookReader.read(wbfile,
+                cached || INDEX_DIR == null ? referencedNames(references) : name -> true, addresses, ranges));
+    }
+
+    // Recalculated results may change from one day to the next (TODAY, NOW...),
+    // so the names of recalculated workbooks are never indexed.
+    private static Pair<WorkbookSnapshot, NameIndex> recalculateWorkbook(Path wbfile, CompiledTemplate compiled) throws IOException {
+        final Set<String> references = compiled.references();
+        final List<CellReference> addresses = new ArrayList<>();
+        final List<String> ranges = new ArrayList<>();
+        referencedCells(compiled, addresses, ranges);
+
+        final WorkbookSnapshot workbook = Recalculation.read(wbfile, referencedNames(references), addresses, ranges,
+                ForkJoinPool.commonPool());
+        return Pair.of(workbook, NameIndex.of(workbook));
+    }
+
+    // Sorts out the cell addresses and ranges the template refers to. Those
+    // written as members (Home.A1, sum.Home.B2:B500) are wanted on the sheet they
+    // are members of. Strings may end up as members of any sheet, through a
+    // variable, so they are wanted on every sheet unless they name one (Home!A1).
+    private static void referencedCells(CompiledTemplate compiled, List<CellReference> addresses, List<String> ranges) {
+        for (String access : compiled.memberAccesses()) {
+            final int period = access.lastIndexOf('.');
+            final String sheet = access.substring(access.lastIndexOf('.', period - 1) + 1, period);
+            referencedCell(sheet, access.substring(period + 1), addresses, ranges);
+        }
+        for (String string : compiled.strings()) {
+            referencedCell(null, string, addresses, ranges);
+        }
+    }
+
+    private static void referencedCell(String sheet, String reference, List<CellReference> addresses, List<String> ranges) {
+        final long address = Address.parse(reference);
+        if (address != Address.INVALID && Address.row(address) >= 0 && Address.column(address) >= 0) {
+            addresses.add(new CellReference(sheet != null ? sheet : Address.sheetName(reference), Address.row(address),
+                    Address.column(address), false, false));
+        } else if (reference.indexOf(':') > 0) {
+            ranges.add(sheet != null ? sheet + "!" + reference : reference);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Loader {
+        WorkbookSnapshot load(boolean indexed) throws IOException;
+    }
+
+    // Loads a workbook, telling the loader whether its names are indexed already,
+    // and pairs it with the index of its names.
+    private static Pair<WorkbookSnapshot, NameIndex> index(Path wbfile, Loader loader) throws IOException {
+        if (INDEX_DIR == null) {
+            final WorkbookSnapshot workbook = loader.load(false);
+            return Pair.of(workbook, NameIndex.of(workbook));
+        }
+
+        final Path file = INDEX_DIR.resolve(NameIndex.key(wbfile) + ".names");
+        NameIndex names;
+        try {
+            names = NameIndex.read(file);
+        } catch (IOException e) {
+            names = null; // Rebuilt below
+        }
+
+        final WorkbookSnapshot workbook = loader.load(names != null);
+        if (names == null) {
+            names = NameIndex.of(workbook);
+            try {
+                names.write(file);
+            } catch (IOException e) {
+                System.out.println(ANSI_YELLOW + "Cannot save name index '%s': %s".formatted(file, e.getMessage()) + ANSI_RESET);
+            }
+        }
+        return Pair.of(workbook, names);
+    }
+
+    // Names in repeated sections are written with CN in the template, which is
+    // replaced by C1, C2... once the sections have been repeated.
+    private static Predicate<String> referencedNames(Set<String> references) {
+        final List<String> repeated = new ArrayList<>();
+        for (String reference : references) {
+            if (reference.contains("CN")) {
+                repeated.add(Arrays.stream(reference.split("CN", -1))
+                        .map(Pattern::quote)
+                        .collect(Collectors.joining("C\\d+")));
+            }
+        }
+
+        if (repeated.isEmpty()) {
+            return references::contains;
+        }
+        final Pattern pattern = Pattern.compile(String.join("|", repeated));
+        return name -> references.contains(name) || pattern.matcher(name).matches();
+    }
+
+    /**
+     * Evaluates the tags of a fresh copy of the template against a workbook file,
+     * as loaded by {@link #loadWorkbook}. If a tag reads a cell that was not
+     * loaded, the tags are evaluated again against the whole workbook.
+     *
+     * @return the pre-processed template, and the replacement of each of its tags
+     */
+    static Pair<XWPFDocument, List<Replacer>> evaluate(Path wbfile, Pair<WorkbookSnapshot, NameIndex> loaded, CompiledTemplate compiled, boolean printLogs) throws IOException {
+        try {
+            return evaluate(loaded, compiled, printLogs);
+        } catch (WorkbookSnapshot.NotLoadedException e) {
+            System.out.println(ANSI_YELLOW + "'%s': %s Reading the workbook in full.".formatted(wbfile, e.getMessage()) + ANSI_RESET);
+            return evaluate(readWorkbook(wbfile), compiled, printLogs);
+        }
+    }
+
+    /**
+     * Evaluates the tags of a fresh copy of the template against a workbook and
+     * the index of its names.
+     *
+     * @return the pre-processed template, and the replacement of each of its tags
+     * @throws WorkbookSnapshot.NotLoadedException if a tag reads a cell that was
+     *                                             not loaded
+     */
+    static Pair<XWPFDocument, List<Replacer>> evaluate(Pair<WorkbookSnapshot, NameIndex> loaded, CompiledTemplate compiled, boolean printLogs) throws IOException {
+
+        final WorkbookSnapshot workbook = loaded.key;
+        final NameIndex names = loaded.value;
 
-        final XSSFWorkbook workbook;
         final XWPFDocument template;
-        final List<XSSFName> xssfnames;
-        final Iterator<Sheet> sheetItr;
-        final List<String> tags;
+        final List<Extractor.Tag> tags = new ArrayList<>();
         
         final Map<String, Object> vars = new HashMap<>();
         final Slot<Interpreter> in = Slot.of("interpreter", null);
         final List<Replacer> replacers = new LinkedList<>();
 
         // final MemberUpdater<Object, String, Object> mupdate; // No mupdating here.
-        final var maccess = makeMaccess.apply(in);
+        // Member accesses are resolved once per report, and shared by all of its
+        // tags.
+        final MemberMemo memo = new MemberMemo(new Address.Cache(ADDRESS_CACHE_SIZE));
+        final var maccess = makeMaccess.apply(in, memo);
 
-        template = new XWPFDocument(Files.newInputStream(Paths.get(docfile)));
-        workbook = new XSSFWorkbook(wbfile);
-        xssfnames = workbook.getAllNames();
-        sheetItr = workbook.sheetIterator();
+        template = compiled.open();
 
-        while (sheetItr.hasNext()) {
-            final Pair<Sheet, Map<String, XSSFCell>> sheetPair = Pair.of(sheetItr.next(), new HashMap<>());
+        for (WorkbookSnapshot.Sheet wsheet : workbook.getSheets()) {
+            final Pair<WorkbookSnapshot.Sheet, Map<String, Object>> sheetPair = Pair.of(wsheet, new HashMap<>());
 
-            vars.put(codename(sheetPair.key), sheetPair);
-            if (validName(sheetPair.key.getSheetName())) {
-                vars.put(sheetPair.key.getSheetName(), sheetPair);
+            vars.put(wsheet.getCodeName(), sheetPair);
+            if (validName(wsheet.getSheetName())) {
+                vars.put(wsheet.getSheetName(), sheetPair);
             }
         }
 
-        for (XSSFName xname : xssfnames) {
-            if (reftype(xname.getRefersToFormula()) == ReferenceType.CELL) {
+        for (NameIndex.Entry xname : names.entries()) {
+            final String sname = xname.sheet, name = xname.name;
 
-                final CellReference ref = ref(xname.getRefersToFormula());
-                final String sname = ref.getSheetName(), name = xname.getNameName();
-                final int row = ref.getRow(), col = ref.getCol();
+            // I'll get rid of the warning. Eventually... -SMG
+            @SuppressWarnings("unchecked")
+            final Pair<WorkbookSnapshot.Sheet, HashMap<String, Object>> vsheet = (Pair<WorkbookSnapshot.Sheet, HashMap<String, Object>>) vars.get(sname);
+            if (vsheet == null) {
+                continue;
+            }
 
-                // I'll get rid of the warning. Eventually... -SMG
-                @SuppressWarnings("unchecked")
-                final Pair<Sheet, HashMap<String, XSSFCell>> vsheet = (Pair<Sheet, HashMap<String, XSSFCell>>) vars.get(sname);
-                if (vsheet == null) {
-                    continue;
-                }
+            final Map<String, Object> sheet = vsheet.value;
+            final Cell cell = xname.cell;
 
-                final Map<String, XSSFCell> sheet = vsheet.value;
-                final XSSFCell cell = workbook.getSheet(sname).getRow(row).getCell(col);
+            vars.put(name, vars.containsKey(name) ? DUPLICATE_NAME : cell);
+            sheet.put(name, cell);
+        }
 
-                vars.put(name, vars.containsKey(name) ? DUPLICATE_NAME : cell);
-                sheet.put(name, cell);
+        // Named areas are not indexed, but every name is listed in the workbook.
+        for (Pair<String, String> xname : workbook.getNames()) {
+            if (xname.value == null || xname.value.indexOf(':') < 0) {
+                continue;
+            }
+
+            final Object sheet = vars.get(Range.sheetName(xname.value));
+            if (!(sheet instanceof Pair)) {
+                continue;
             }
-        }
 
-        for (String key : vars.keySet()) {
-            if (vars.get(key) == DUPLICATE_NAME) {
-                vars.remove(key);
+            @SuppressWarnings("unchecked")
+            final Pair<WorkbookSnapshot.Sheet, Map<String, Object>> vsheet = (Pair<WorkbookSnapshot.Sheet, Map<String, Object>>) sheet;
+            final Range range = Range.parse(vsheet.key, xname.value);
+            if (range == null) {
+                continue;
             }
+
+            vars.put(xname.key, vars.containsKey(xname.key) ? DUPLICATE_NAME : range);
+            vsheet.value.put(xname.key, range);
         }
 
-        workbook.close();
+        vars.values().removeIf(value -> value == DUPLICATE_NAME);
 
         vars.put("str", STRINGIFY);
         vars.put("tostr", TOSTRINGIFY);
@@ -349,27 +848,36 @@ public class Main {
         vars.put("col", COLUMN);
         vars.put("formula", FORMULIFY);
         vars.put("f", FORMULIFY);
+        vars.put("sum", SUM);
+        vars.put("min", MIN);
+        vars.put("max", MAX);
+        vars.put("avg", AVERAGE);
+        vars.put("count", COUNT);
         vars.put("Now", Date.from(Instant.now()));
 
-        // Find the number of contracts according to the template
-        final List<String> specialTags = Extractor.extractSpecialTags(template);
+        // Names that are, or may become, variables before the tags run.
+        memo.variables(vars.keySet());
+        for (CompiledTemplate.Tag tag : compiled.specialTags()) {
+            memo.variables(tag.writes());
+        }
 
+        // Find the number of contracts according to the template
         int NumberOfContracts = 0;
-        for (String tag : specialTags) {
-            // Assume tags are of the form <<...>> or <<<...>>>
-            String prog = tag.substring(3, tag.length() - 3);
-
-            in.value(new Interpreter(prog, vars));
+        for (CompiledTemplate.Tag tag : compiled.specialTags()) {
+            in.value(tag.interpreter(vars));
             in.value().setMemberAccessCallback(maccess);
 
             try {
                 in.value().interpret();
-                replacers.add(replacer(tag, ""));
+                replacers.add(replacer(tag.text, ""));
+            } catch (WorkbookSnapshot.NotLoadedException e) {
+                template.close();
+                throw e;
             } catch (Exception e) {
-                report(e, tag);
+                report(e, tag.text);
             }
 
-            if (in.value().findVariable("NUMBER_OF_CONTRACTS").isPresent()) {
+            if (in.value().defined("NUMBER_OF_CONTRACTS")) {
                 NumberOfContracts = ((Double) in.value().getVariable("NUMBER_OF_CONTRACTS")).intValue();
             }
         }
@@ -383,29 +891,50 @@ public class Main {
             vars.put("C" + i + "_Ord", i);
         }
 
-        tags = Extractor.extractTags(template);
-        for (String tag : tags) {
-            // Assume tags are of the form <<...>>
-            String prog = tag.substring(2, tag.length() - 2);
+        // Tags are extracted with their locations, so that rendering replaces them
+        // where they are instead of searching the document for them again.
+        Extractor.extractTags(template, tags::add);
+        final List<CompiledTemplate.Tag> steps = new ArrayList<>(tags.size());
+        for (Extractor.Tag tag : tags) {
+            steps.add(compiled.tag(tag.text));
+        }
+
+        memo.variables(vars.keySet());
+        for (CompiledTemplate.Tag step : steps) {
+            memo.variables(step.writes());
+        }
 
-            final int colon = prog.lastIndexOf(':');
-            final int quote = Math.max(prog.lastIndexOf('\"'), prog.lastIndexOf('\''));
-            final String spec;
-            if (colon != -1 && quote < colon) {
-                spec = prog.substring(colon + 1, prog.length()).strip();
-                prog = prog.substring(0, colon);
-            } else {
-                spec = null;
+        // Tags run over variables of their own, so each one needs its own member
+        // access callback. Variables written by every tag are applied to vars once
+        // all tags are done, in order, for persistence across tag executions.
+        final List<Sequence.Outcome> outcomes = Sequence.run(steps, vars,
+                interpreter -> interpreter.setMemberAccessCallback(makeMaccess.apply(Slot.of("interpreter", interpreter), memo)),
+                TAG_EXECUTOR);
+
+        // A tag that read a cell that was not loaded would give a wrong result
+        // rather than an error, so the whole report is given up on.
+        for (Sequence.Outcome outcome : outcomes) {
+            if (outcome.error instanceof WorkbookSnapshot.NotLoadedException) {
+                template.close();
+                throw (WorkbookSnapshot.NotLoadedException) outcome.error;
             }
+        }
 
-            in.value(new Interpreter(prog, vars));
-            in.value().setMemberAccessCallback(maccess);
+        // Results are formatted and logged in document order.
+        for (int i = 0; i < steps.size(); i += 1) {
+            final CompiledTemplate.Tag compiledTag = steps.get(i);
+            final Sequence.Outcome outcome = outcomes.get(i);
+            String tag = compiledTag.text;
 
             try {
-                final Object output = in.value().interpret();
-                final String result = output == null ? "" : format(output, spec);
+                if (outcome.error != null) {
+                    throw outcome.error;
+                }
 
-                replacers.add(replacer(tag, result));
+                final Object output = outcome.result;
+                final String result = output == null ? "" : format(output, compiledTag.spec);
+
+                replacers.add(replacer(tags.get(i), result));
 
                 if (tag.contains("\n")) {
                     tag = tag.substring(0, Math.min(tag.indexOf('\n'), 16)) + "...\\n>>";
@@ -414,21 +943,32 @@ public class Main {
             } catch (Exception e) {
                 if (printLogs) report(e, tag);
             }
-
-            // Update our variables so we can have persistance across tag executions.
-            vars.putAll(in.value().getGlobalScopeVariables());
         }
 
-        // Replace tags
-        Replacers.orderedReplace(template, replacers);
+        return Pair.of(template, replacers);
+    }
+
+    /**
+     * Replaces the tags of an evaluated template.
+     *
+     * @return the report document
+     */
+    static XWPFDocument render(XWPFDocument template, List<Replacer> replacers) {
+        // Replace tags where they were extracted
+        Replacers.locatedReplace(template, replacers);
         
         // Remove unwanted sections
         Preprocessor.removeSections(template);
-        
-        // Save to file
-        try (final FileOutputStream fs = new FileOutputStream(outfile)) {
-            template.write(fs);
-            template.close();
+        return template;
+    }
+
+    /**
+     * Writes a report document to a file, and closes it.
+     */
+    static void write(XWPFDocument report, Path outfile) throws IOException {
+        try (final XWPFDocument document = report;
+                final FileOutputStream fs = new FileOutputStream(outfile.toFile())) {
+            document.write(fs);
         }
     }
  
@@ -436,6 +976,10 @@ public class Main {
         return Replacer.of(bookmark, replacement);
     }
 
+    static Replacer replacer(Extractor.Tag tag, String replacement) {
+        return Replacer.of(tag, replacement);
+    }
+
     static void report(Exception e, String program) {
         if (program.contains("\n")) {
             program = program.substring(0, Math.min(program.indexOf('\n'), 16)) + "...\\n>>";
@@ -447,7 +991,9 @@ public class Main {
         System.out.println(program + " -> " + ANSI_RED + "Error: " + msg + ANSI_RESET);
     }
 
-    private static final DateFormat shortDate = new SimpleDateFormat("dd/MM/yyyy");
+    // Date formats are not thread safe, and reports may be produced concurrently.
+    private static final ThreadLocal<DateFormat> shortDate = ThreadLocal
+            .withInitial(() -> new SimpleDateFormat("dd/MM/yyyy"));
 
     static String format(Object thing, String spec) {
 
@@ -461,7 +1007,7 @@ public class Main {
             switch (spec) {
                 case "short_date":
                 case "sdate":
-                    return shortDate.format(thing);
+                    return shortDate.get().format(thing);
                 case "currency":
                 case "curr":
                     return format(thing, "£ %,.2f");
@@ -477,103 +1023,120 @@ public class Main {
 
     }
 
-    private static ReferenceType reftype(String address) {
+    private static boolean validName(String name) {
+        return new Tokeniser(name).nextToken().isAny(TokenType.Qualifier);
+    }
+}
 
-        if (ref(address) != null) {
-            return ReferenceType.CELL;
-        }
 
-        String[] parts = address.replace("$", "").split(":");
-        if (parts.length != 2)
-            return ReferenceType.INVALID;
+class ReporterInstance implements Callable<Void> {
+    String wb, out;
+    CompiledTemplate template;
+    boolean singleReport;
 
-        try {
-            CellReference.convertColStringToIndex(parts[1]);
-            // No error means valid column
-            return ReferenceType.COLUMN;
-        } catch (Exception e) {
-        }
+    ReporterInstance(String wb, String out, CompiledTemplate template, boolean singleReport) {
+        this.wb = wb;
+        this.out = out;
+        this.template = template;
+        this.singleReport = singleReport;
+    }
 
+    @Override
+    public Void call() throws Exception {
         try {
-            Integer.parseInt(parts[1]);
-            // No error means valid row
-            return ReferenceType.ROW;
-        } catch (Exception e) {
+            Main.produceReport(wb, out, template, singleReport);
+            succeeded();
         }
-
-        return ReferenceType.INVALID;
+        catch (Exception e) {
+            failed(e);
+        }
+        return null;
     }
 
-    private static final String r1c1pattern = "R\\d+C\\d+";
-
-    private static CellReference refR1C1(String ref) {
-        if (!(ref = ref.trim()).matches(r1c1pattern))
-            return null;
-
-        final int cindex = ref.indexOf('C');
-        return new CellReference(
-                Integer.parseInt(ref.substring(1, cindex)) - 1,
-                Short.parseShort(ref.substring(cindex + 1)) - 1);
+    // The stages of a report, for schedulers that run them on different threads.
+    @FunctionalInterface
+    interface Stage<R> {
+        R run() throws Exception;
     }
 
-    private static CellReference ref(String address) {
+    // Runs a stage of this report, reporting its failure and returning null if it
+    // fails.
+    <R> R stage(Stage<R> stage) {
         try {
-            return new CellReference(address);
+            return stage.run();
         } catch (Exception e) {
-            return refR1C1(address);
+            failed(e);
+            return null;
         }
-
     }
 
-    private static XSSFCell cell(XSSFSheet sheet, String loc) {
-        final CellReference ref = ref(loc);
-
-        final XSSFRow row = sheet.getRow(ref.getRow());
-        if (row == null)
-            return null;
-
-        return row.getCell(ref.getCol());
+    void succeeded() {
+        System.out.println(Main.ANSI_GREEN + "Report '%s' generated successfully.".formatted(out) + Main.ANSI_RESET);
     }
 
-    private static String codename(Sheet sheet) {
-        final CTSheetPr sheetPr = ((XSSFSheet) sheet).getCTWorksheet().getSheetPr();
-        if (sheetPr == null) {
-            return ((XSSFSheet) sheet).getSheetName();
+    void failed(Throwable e) {
+        if (!singleReport) System.out.println(Main.ANSI_RED + "Report '%s' failed. Run independently to get more details.".formatted(out) + Main.ANSI_RESET);
+        else {
+            System.out.println(Main.ANSI_RED);
+            e.printStackTrace();
+            System.out.println(Main.ANSI_RESET);
         }
-        return sheetPr.getCodeName();
-    }
-
-    private static boolean validName(String name) {
-        return new Tokeniser(name).nextToken().isAny(TokenType.Qualifier);
     }
 }
 
 
-class ReporterInstance implements Callable<Void> {
-    String wb, out, docfile;
-    boolean singleReport;
+/**
+ * The member accesses of a report that have already been resolved, by sheet and
+ * member. Only members that can never name a variable are memoised, since a
+ * variable may hold an address that changes when the variable is written. The
+ * names of all variables, and every name a tag may write, are registered before
+ * the tags run, which also drops anything memoised for them. Defined names are
+ * not memoised, as looking them up in the sheet is just as quick.
+ * <p>
+ * A memo can be shared by tags running on different threads. The counters cover
+ * every report of the batch.
+ */
+class MemberMemo {
+    static final Object UNKNOWN = new Object();
+    static final LongAdder HITS = new LongAdder(), MISSES = new LongAdder();
 
-    ReporterInstance(String wb, String out, String docfile, boolean singleReport) {
-        this.wb = wb;
-        this.out = out;
-        this.docfile = docfile;
-        this.singleReport = singleReport;
+    private static final Object MISSING = new Object();
+
+    final Address.Cache addresses;
+    private final Map<Object, Map<String, Object>> sheets = new ConcurrentHashMap<>();
+    private final Set<String> variables = ConcurrentHashMap.newKeySet();
+
+    MemberMemo(Address.Cache addresses) {
+        this.addresses = addresses;
     }
 
-    @Override
-    public Void call() throws Exception {
-        try {
-            Main.produceReport(wb, out, docfile, singleReport);
-            System.out.println(Main.ANSI_GREEN + "Report '%s' generated successfully.".formatted(out) + Main.ANSI_RESET);
-        }
-        catch (Exception e) {
-            if (!singleReport) System.out.println(Main.ANSI_RED + "Report '%s' failed. Run independently to get more details.".formatted(out) + Main.ANSI_RESET);
-            else {
-                System.out.println(Main.ANSI_RED);
-                e.printStackTrace();
-                System.out.println(Main.ANSI_RESET);
+    // Registers names that are, or may become, variables.
+    void variables(Collection<String> names) {
+        if (variables.addAll(names)) {
+            for (Map<String, Object> members : sheets.values()) {
+                members.keySet().removeAll(names);
             }
         }
-        return null;
     }
-}
\ No newline at end of file
+
+    // Returns the memoised value of a member (null for a missing cell), or UNKNOWN.
+    Object get(Object sheet, String member) {
+        final Map<String, Object> members = variables.contains(member) ? null : sheets.get(sheet);
+        final Object value = members == null ? null : members.get(member);
+        if (value == null) {
+            MISSES.increment();
+            return UNKNOWN;
+        }
+        HITS.increment();
+        return value == MISSING ? null : value;
+    }
+
+    // Memoises the value of a member, unless it may be a variable, and returns it.
+    Object put(Object sheet, String member, Object value) {
+        if (!variables.contains(member)) {
+            sheets.computeIfAbsent(sheet, k -> new ConcurrentHashMap<>()).put(member, value == null ? MISSING : value);
+        }
+        return value;
+    }
+}
+
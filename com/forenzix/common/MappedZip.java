@@ -0,0 +1,286 @@
+package com.forenzix.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only zip archive over a memory-mapped file, or over bytes already in
+ * memory. Only the central directory is read when the archive is opened; every
+ * entry is then read straight from the mapping, and only inflated when it is
+ * opened. Office documents are zip archives whose parts are mostly not needed, so
+ * nothing is copied or inflated for the parts that are never opened.
+ * <p>
+ * Archives can be read from any number of threads, each entry opened any number
+ * of times.
+ */
+public final class MappedZip implements Closeable {
+
+    private static final int LOCAL_HEADER = 0x04034b50, CENTRAL_HEADER = 0x02014b50, END = 0x06054b50,
+            END64 = 0x06064b50, END64_LOCATOR = 0x07064b50;
+    private static final int STORED = 0, DEFLATED = 8;
+
+    private final ByteBuffer buffer;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private MappedZip(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        readCentralDirectory();
+    }
+
+    /**
+     * Maps the zip file at the given path. The file must not change while the
+     * archive is in use.
+     *
+     * @param path path of a zip file
+     * @return the archive
+     * @throws IOException if the file cannot be read, or is not a zip file
+     */
+    public static MappedZip open(Path path) throws IOException {
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ZipException("Zip file too large to map: " + path);
+            }
+            return new MappedZip(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Reads a zip archive held in memory.
+     *
+     * @param contents contents of a zip file
+     * @return the archive
+     * @throws IOException if the contents are not a zip file
+     */
+    public static MappedZip of(byte[] contents) throws IOException {
+        return new MappedZip(ByteBuffer.wrap(contents));
+    }
+
+    /**
+     * Returns the whole archive, as a read-only buffer.
+     */
+    public ByteBuffer contents() {
+        return buffer.asReadOnlyBuffer().position(0);
+    }
+
+    /**
+     * Returns the names of the entries, in the order of the central directory.
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Opens an entry, inflating it as it is read.
+     *
+     * @param name name of the entry, without a leading slash
+     * @return a stream over the contents of the entry, or null if there is no such
+     *         entry
+     * @throws IOException if the entry is corrupt, or compressed with an unknown
+     *                     method
+     */
+    public InputStream open(String name) throws IOException {
+        final Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        // The local header may have an extra field of a different length than
+        // the one in the central directory.
+        final int header = entry.offset;
+        if (header + 30 > buffer.limit() || buffer.getInt(header) != LOCAL_HEADER) {
+            throw new ZipException("Corrupt zip entry: " + name);
+        }
+        final int start = header + 30 + (buffer.getShort(header + 26) & 0xffff) + (buffer.getShort(header + 28) & 0xffff);
+        if (start + entry.compressedSize > buffer.limit()) {
+            throw new ZipException("Truncated zip entry: " + name);
+        }
+
+        final ByteBuffer data = buffer.duplicate();
+        data.position(start).limit(start + entry.compressedSize);
+
+        switch (entry.method) {
+            case STORED:
+                return new BufferInputStream(data.slice());
+            case DEFLATED:
+                final Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(new BufferInputStream(data.slice()), inflater, 8192) {
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+                        if (!closed) {
+                            closed = true;
+                            inflater.end();
+                            super.close();
+                        }
+                    }
+                };
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + ": " + name);
+        }
+    }
+
+    /**
+     * Reads an entry in full.
+     *
+     * @param name name of the entry
+     * @return the contents of the entry, or null if there is no such entry
+     * @throws IOException if the entry cannot be read
+     */
+    public byte[] read(String name) throws IOException {
+        try (final InputStream in = open(name)) {
+            return in == null ? null : in.readAllBytes();
+        }
+    }
+
+    /**
+     * Does nothing: mapped memory is released once the archive is no longer
+     * reachable. Archives are closeable so that they can be used like other
+     * resources.
+     */
+    @Override
+    public void close() {
+    }
+
+    /***************************************************************************
+     * Central directory
+     **************************************************************************/
+    private static final class Entry {
+        final int method, compressedSize, offset;
+
+        Entry(int method, long compressedSize, long offset) throws ZipException {
+            if (compressedSize > Integer.MAX_VALUE || offset > Integer.MAX_VALUE) {
+                throw new ZipException("Zip entry too large");
+            }
+            this.method = method;
+            this.compressedSize = (int) compressedSize;
+            this.offset = (int) offset;
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        final int end = findEnd();
+
+        long count = buffer.getShort(end + 10) & 0xffff;
+        long offset = buffer.getInt(end + 16) & 0xffffffffL;
+
+        // Zip64 archives keep the real values in another record.
+        if (count == 0xffff || offset == 0xffffffffL) {
+            final int locator = end - 20;
+            if (locator >= 0 && buffer.getInt(locator) == END64_LOCATOR) {
+                final long end64 = buffer.getLong(locator + 8);
+                if (end64 < 0 || end64 + 56 > buffer.limit() || buffer.getInt((int) end64) != END64) {
+                    throw new ZipException("Corrupt zip64 end of central directory");
+                }
+                count = buffer.getLong((int) end64 + 32);
+                offset = buffer.getLong((int) end64 + 48);
+            }
+        }
+
+        int position = (int) offset;
+        for (long i = 0; i < count; i += 1) {
+            if (position + 46 > buffer.limit() || buffer.getInt(position) != CENTRAL_HEADER) {
+                throw new ZipException("Corrupt zip central directory");
+            }
+
+            final int method = buffer.getShort(position + 10) & 0xffff;
+            long compressedSize = buffer.getInt(position + 20) & 0xffffffffL;
+            long uncompressedSize = buffer.getInt(position + 24) & 0xffffffffL;
+            long local = buffer.getInt(position + 42) & 0xffffffffL;
+            final int nameLength = buffer.getShort(position + 28) & 0xffff;
+            final int extraLength = buffer.getShort(position + 30) & 0xffff;
+            final int commentLength = buffer.getShort(position + 32) & 0xffff;
+
+            final byte[] name = new byte[nameLength];
+            buffer.duplicate().position(position + 46).get(name);
+
+            // Zip64 sizes and offsets are in the extra field, in this order, and
+            // only when the regular field is saturated.
+            int extra = position + 46 + nameLength;
+            final int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                final int id = buffer.getShort(extra) & 0xffff, size = buffer.getShort(extra + 2) & 0xffff;
+                if (id == 0x0001) {
+                    int field = extra + 4;
+                    if (uncompressedSize == 0xffffffffL) {
+                        uncompressedSize = buffer.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xffffffffL) {
+                        compressedSize = buffer.getLong(field);
+                        field += 8;
+                    }
+                    if (local == 0xffffffffL) {
+                        local = buffer.getLong(field);
+                    }
+                }
+                extra += 4 + size;
+            }
+
+            entries.put(new String(name, StandardCharsets.UTF_8), new Entry(method, compressedSize, local));
+            position = extraEnd + commentLength;
+        }
+    }
+
+    // The end of central directory record is at the very end, before a comment
+    // of up to 64k.
+    private int findEnd() throws ZipException {
+        final int last = buffer.limit() - 22;
+        final int first = Math.max(0, last - 0xffff);
+        for (int position = last; position >= first; position -= 1) {
+            if (buffer.getInt(position) == END) {
+                return position;
+            }
+        }
+        throw new ZipException("Not a zip file");
+    }
+
+    private static final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
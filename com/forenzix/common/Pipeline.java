@@ -0,0 +1,141 @@
+package com.forenzix.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A chain of stages, each running on threads of its own, connected by bounded
+ * queues. Every stage takes items from the queue before it and puts its results
+ * on the queue after it, blocking when that queue is full. A slow stage therefore
+ * holds back the stages before it instead of letting items pile up, so at most
+ * {@code depth} items wait between two stages, plus one item per worker being
+ * processed.
+ * <p>
+ * Items are processed in no particular order. A stage drops an item by returning
+ * null. A stage should handle its own errors; an item whose stage throws is
+ * dropped, and the first such exception is rethrown by {@link #drain}.
+ */
+public final class Pipeline<T> {
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> output;
+    private final int depth;
+    private final AtomicReference<Throwable> failure;
+
+    private Pipeline(BlockingQueue<Object> output, int depth, AtomicReference<Throwable> failure) {
+        this.output = output;
+        this.depth = depth;
+        this.failure = failure;
+    }
+
+    /**
+     * Starts a pipeline that feeds the given items into its first stage.
+     *
+     * @param items items to process
+     * @param depth capacity of the queue between two stages
+     * @return the pipeline
+     */
+    public static <T> Pipeline<T> of(Iterable<T> items, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Queue depth must be at least 1.");
+        }
+
+        final Pipeline<T> pipeline = new Pipeline<>(new ArrayBlockingQueue<>(depth), depth, new AtomicReference<>());
+        start("source", () -> {
+            for (T item : items) {
+                pipeline.output.put(item);
+            }
+            pipeline.output.put(END);
+        });
+        return pipeline;
+    }
+
+    /**
+     * Adds a stage to the pipeline.
+     *
+     * @param name    name of the stage, for its threads
+     * @param workers number of threads running the stage
+     * @param stage   processes a single item
+     * @return the pipeline, ending with the new stage
+     */
+    public <R> Pipeline<R> then(String name, int workers, Function<? super T, ? extends R> stage) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("A stage needs at least 1 worker.");
+        }
+
+        final BlockingQueue<Object> input = output;
+        final Pipeline<R> next = new Pipeline<>(new ArrayBlockingQueue<>(depth), depth, failure);
+        final AtomicInteger running = new AtomicInteger(workers);
+
+        for (int i = 0; i < workers; i += 1) {
+            start(name + "-" + i, () -> {
+                for (Object item = input.take(); item != END; item = input.take()) {
+                    final R result = apply(stage, item);
+                    if (result != null) {
+                        next.output.put(result);
+                    }
+                }
+
+                // Pass the end on to the other workers of this stage, and to the
+                // next stage once they are all done.
+                input.put(END);
+                if (running.decrementAndGet() == 0) {
+                    next.output.put(END);
+                }
+            });
+        }
+        return next;
+    }
+
+    /**
+     * Consumes the results of the last stage on the calling thread, and returns
+     * once every item has gone through the pipeline.
+     *
+     * @param sink consumes a single result
+     * @throws InterruptedException if interrupted while waiting for a result
+     * @throws RuntimeException     if a stage threw
+     */
+    @SuppressWarnings("unchecked")
+    public void drain(Consumer<? super T> sink) throws InterruptedException {
+        for (Object item = output.take(); item != END; item = output.take()) {
+            sink.accept((T) item);
+        }
+
+        final Throwable thrown = failure.get();
+        if (thrown != null) {
+            throw new RuntimeException("A pipeline stage failed.", thrown);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> R apply(Function<? super T, ? extends R> stage, Object item) {
+        try {
+            return stage.apply((T) item);
+        } catch (RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Task {
+        void run() throws InterruptedException;
+    }
+
+    private static void start(String name, Task task) {
+        final Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "pipeline-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
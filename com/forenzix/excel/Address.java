@@ -0,0 +1,244 @@
+package com.forenzix.excel;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses cell addresses, in A1 style (with an optional sheet name, such as
+ * 'My Data'!$B$2) or in R1C1 style. Addresses are read the same way POI's
+ * CellReference reads them, except that nothing is allocated and nothing is
+ * thrown: a parsed address is a row and a column packed into a long, and an
+ * invalid address parses as {@link #INVALID}.
+ * <p>
+ * Like CellReference, an A1 address may leave out its row or its column (B or
+ * 12), which is then -1, and columns too long for a short wrap around.
+ */
+public final class Address {
+
+    /**
+     * What parsing an invalid address returns. No valid address packs to this
+     * value, since rows are never less than -1.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private Address() {
+    }
+
+    /**
+     * Packs a row and a column into an address.
+     */
+    public static long of(int row, int col) {
+        return (long) row << 32 | (col & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the (zero based) row of a parsed address.
+     */
+    public static int row(long address) {
+        return (int) (address >> 32);
+    }
+
+    /**
+     * Returns the (zero based) column of a parsed address.
+     */
+    public static int column(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Parses a cell address. The sheet name, if any, is checked but not kept.
+     *
+     * @param address an A1 or R1C1 address
+     * @return the packed address, or {@link #INVALID}
+     */
+    public static long parse(String address) {
+        return parse(address, 0, address.length());
+    }
+
+    /**
+     * Parses the cell address found between the given indices of a string, such as
+     * one end of a range.
+     *
+     * @param text  the text holding the address
+     * @param start index of the first character of the address
+     * @param end   index after the last character of the address
+     * @return the packed address, or {@link #INVALID}
+     */
+    public static long parse(String text, int start, int end) {
+        final long a1 = parseA1(text, start, end);
+        return a1 != INVALID ? a1 : parseR1C1(text, start, end);
+    }
+
+    /**
+     * Returns the sheet name of an A1 address, unquoted.
+     *
+     * @param address an A1 or R1C1 address
+     * @return the sheet name, or null if the address has none or is invalid
+     */
+    public static String sheetName(String address) {
+        final int pling = address.lastIndexOf('!');
+        if (pling < 0 || parseA1(address, 0, address.length()) == INVALID) {
+            return null;
+        }
+        if (address.charAt(0) != '\'') {
+            return address.substring(0, pling);
+        }
+        return pling < 2 ? "" : address.substring(1, pling - 1).replace("''", "'");
+    }
+
+    private static long parseA1(String text, int start, int end) {
+        if (end - start >= 5 && text.regionMatches(true, end - 5, "#REF!", 0, 5)) {
+            return INVALID;
+        }
+
+        int cell = start;
+        final int pling = text.lastIndexOf('!', end - 1);
+        if (pling >= start) {
+            if (!isSheetName(text, start, pling, end)) {
+                return INVALID;
+            }
+            cell = pling + 1;
+        }
+
+        // Letters outside ASCII may upper-case to ASCII letters (such as the
+        // dotless i), which CellReference accepts.
+        for (int i = cell; i < end; i += 1) {
+            if (text.charAt(i) >= 0x80) {
+                final String upper = text.substring(cell, end).toUpperCase(Locale.ROOT);
+                return parseCell(upper, 0, upper.length());
+            }
+        }
+        return parseCell(text, cell, end);
+    }
+
+    // Sheet names are either quoted, with quotes inside doubled, or hold no
+    // spaces (nor does the rest of the address).
+    private static boolean isSheetName(String text, int start, int pling, int end) {
+        if (text.charAt(start) != '\'') {
+            final int space = text.indexOf(' ', start);
+            return space == -1 || space >= end;
+        }
+
+        final int lastQuote = pling - 1;
+        if (text.charAt(lastQuote) != '\'') {
+            return false;
+        }
+        for (int i = start + 1; i < lastQuote; i += 1) {
+            if (text.charAt(i) == '\'') {
+                if (i + 1 < lastQuote && text.charAt(i + 1) == '\'') {
+                    i += 1;
+                } else {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // An optional column ($AB) followed by an optional row ($12)
+    private static long parseCell(String text, int start, int end) {
+        int position = start, row = -1, col = -1;
+
+        int i = position < end && text.charAt(position) == '$' ? position + 1 : position;
+        int value = 0;
+        final int letters = i;
+        for (char c; i < end && ((c = (char) (text.charAt(i) & ~0x20)) >= 'A' && c <= 'Z'); i += 1) {
+            value = value * 26 + (c - 'A' + 1);
+        }
+        if (i > letters) {
+            col = (short) (value - 1); // Overflows the same way as POI
+            position = i;
+        }
+
+        i = position < end && text.charAt(position) == '$' ? position + 1 : position;
+        final long number = digits(text, i, end);
+        if (number >= 0) {
+            if (number > Integer.MAX_VALUE) {
+                return INVALID;
+            }
+            row = (int) number - 1;
+            position = end;
+        }
+
+        return position == end ? of(row, col) : INVALID;
+    }
+
+    private static long parseR1C1(String text, int start, int end) {
+        while (start < end && text.charAt(start) <= ' ') {
+            start += 1;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end -= 1;
+        }
+        if (start == end || text.charAt(start) != 'R') {
+            return INVALID;
+        }
+
+        final int c = text.indexOf('C', start + 1);
+        if (c == -1 || c >= end) {
+            return INVALID;
+        }
+        final long row = digits(text, start + 1, c), col = digits(text, c + 1, end);
+        if (row < 0 || col < 0 || row > Integer.MAX_VALUE || col > Short.MAX_VALUE) {
+            return INVALID;
+        }
+        return of((int) row - 1, (int) col - 1);
+    }
+
+    // The value of a run of digits taking up the whole range, capped just past
+    // the largest int, or -1 if there are other characters or none at all.
+    private static long digits(String text, int start, int end) {
+        if (start >= end) {
+            return -1;
+        }
+
+        long value = 0;
+        for (int i = start; i < end; i += 1) {
+            final char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = Math.min(value * 10 + (c - '0'), Integer.MAX_VALUE + 1L);
+        }
+        return value;
+    }
+
+    /**
+     * Parsed addresses by their text, for addresses that are parsed over and over
+     * (such as addresses built in a loop). A cache is bounded: once it holds as
+     * many addresses as it may, it is emptied before taking the next one. Caches
+     * can be shared between threads.
+     */
+    public static final class Cache {
+        private final Map<String, Long> addresses = new ConcurrentHashMap<>();
+        private final int capacity;
+
+        public Cache(int capacity) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("Cache capacity must be at least 1.");
+            }
+            this.capacity = capacity;
+        }
+
+        /**
+         * Parses a cell address, or returns it from the cache.
+         *
+         * @param address an A1 or R1C1 address
+         * @return the packed address, or {@link Address#INVALID}
+         */
+        public long parse(String address) {
+            final Long cached = addresses.get(address);
+            if (cached != null) {
+                return cached;
+            }
+
+            final long parsed = Address.parse(address);
+            if (addresses.size() >= capacity) {
+                addresses.clear();
+            }
+            addresses.put(address, parsed);
+            return parsed;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.forenzix.excel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.forenzix.common.Pair;
+
+/**
+ * The defined names of a workbook that refer to a single cell, each resolved to
+ * its sheet, row and column, along with the cell itself. Resolving thousands of
+ * names takes a while, and workbooks are often reused unchanged from one run to
+ * the next, so an index can be saved to a file and read back instead, without
+ * reading the names or their cells from the workbook again.
+ * <p>
+ * Index files are keyed by the contents of the workbook (see {@link #key}), so a
+ * workbook that changes in any way gets an index of its own. Indices are
+ * immutable, and can be read from any number of threads.
+ */
+public final class NameIndex {
+
+    private static final int MAGIC = 0x584E4958, VERSION = 1;
+
+    private final boolean date1904;
+    private final List<Entry> entries;
+
+    private NameIndex(boolean date1904, List<Entry> entries) {
+        this.date1904 = date1904;
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Resolves the names of a workbook. Names that do not refer to a single cell
+     * are left out.
+     *
+     * @param workbook a workbook, holding the cells of the names. Names whose
+     *                 cell was not loaded resolve to no cell.
+     * @return the index
+     */
+    public static NameIndex of(WorkbookSnapshot workbook) {
+        final List<Entry> entries = new ArrayList<>();
+        for (Pair<String, String> name : workbook.getNames()) {
+            final long address = Address.parse(name.value);
+            if (address == Address.INVALID) {
+                continue;
+            }
+
+            final String sheetName = Address.sheetName(name.value);
+            final int row = Address.row(address), col = Address.column(address);
+            final WorkbookSnapshot.Sheet sheet = workbook.getSheet(sheetName);
+            entries.add(new Entry(name.key, sheetName, row, col,
+                    sheet == null || !sheet.isLoaded(row, col) ? null : sheet.getCell(row, col)));
+        }
+        return new NameIndex(workbook.isDate1904(), entries);
+    }
+
+    /**
+     * Returns the names, in the order the workbook lists them.
+     */
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Returns the key of the index of a workbook: a SHA-256 digest of its
+     * contents, in hexadecimal.
+     *
+     * @param contents contents of the workbook file
+     * @return the key
+     */
+    public static String key(ByteBuffer contents) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(contents.duplicate());
+
+            final StringBuilder key = new StringBuilder(64);
+            for (byte b : digest.digest()) {
+                key.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * Returns the key of the index of a workbook file. The file is mapped rather
+     * than read.
+     *
+     * @param file path of the workbook file
+     * @return the key
+     * @throws IOException if the file cannot be read
+     */
+    public static String key(Path file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return key(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * A single name of the index.
+     */
+    public static final class Entry {
+
+        public final String name, sheet;
+        public final int row, col;
+
+        /**
+         * The cell the name refers to, or null if there is no such cell.
+         */
+        public final WorkbookSnapshot.Cell cell;
+
+        private Entry(String name, String sheet, int row, int col, WorkbookSnapshot.Cell cell) {
+            this.name = name;
+            this.sheet = sheet;
+            this.row = row;
+            this.col = col;
+            this.cell = cell;
+        }
+
+        @Override
+        public String toString() {
+            return name + " -> " + sheet + "!R" + (row + 1) + "C" + (col + 1);
+        }
+    }
+
+    /***************************************************************************
+     * Index files
+     **************************************************************************/
+
+    /**
+     * Reads an index file.
+     *
+     * @param file path of the index file
+     * @return the index, or null if there is no such file, or if it is not an
+     *         index file this version can read
+     * @throws IOException if the file cannot be read, or is cut short
+     */
+    public static NameIndex read(Path file) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            final boolean date1904 = in.readBoolean();
+            final int count = in.readInt();
+
+            // Cells are read into one sheet per sheet name, as in the workbook.
+            final Map<String, String> strings = new HashMap<>();
+            final Map<String, WorkbookSnapshot.Cells> cells = new LinkedHashMap<>();
+            final Map<String, Set<Long>> added = new HashMap<>();
+            final List<Entry> unresolved = new ArrayList<>(Math.min(count, 1 << 16));
+            for (int i = 0; i < count; i += 1) {
+                final String name = readString(in), sheet = readString(in);
+                final int row = in.readInt(), col = in.readInt();
+                unresolved.add(new Entry(name, sheet, row, col, null));
+
+                if (in.readBoolean()) {
+                    final int bits = in.readUnsignedByte();
+                    final double number = in.readDouble();
+                    final String text = readString(in), formula = readString(in);
+
+                    // Several names may refer to the same cell.
+                    if (added.computeIfAbsent(sheet, k -> new HashSet<>()).add(WorkbookSnapshot.address(row, col))) {
+                        cells.computeIfAbsent(sheet, k -> new WorkbookSnapshot.Cells(strings))
+                                .add(row, col, bits, number, text, formula);
+                    }
+                }
+            }
+
+            final Map<String, WorkbookSnapshot.Sheet> sheets = new HashMap<>();
+            for (Map.Entry<String, WorkbookSnapshot.Cells> sheet : cells.entrySet()) {
+                sheets.put(sheet.getKey(),
+                        new WorkbookSnapshot.Sheet(sheet.getKey(), sheet.getKey(), date1904, sheet.getValue()));
+            }
+
+            final List<Entry> entries = new ArrayList<>(unresolved.size());
+            for (Entry entry : unresolved) {
+                final WorkbookSnapshot.Sheet sheet = sheets.get(entry.sheet);
+                entries.add(new Entry(entry.name, entry.sheet, entry.row, entry.col,
+                        sheet == null ? null : sheet.getCell(entry.row, entry.col)));
+            }
+            return new NameIndex(date1904, entries);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index to a file. The file is replaced in one go, so that an index
+     * being written is never read half-way through.
+     *
+     * @param file path of the index file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path file) throws IOException {
+        final Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(date1904);
+                out.writeInt(entries.size());
+                for (Entry entry : entries) {
+                    writeString(out, entry.name);
+                    writeString(out, entry.sheet);
+                    out.writeInt(entry.row);
+                    out.writeInt(entry.col);
+                    out.writeBoolean(entry.cell != null);
+                    if (entry.cell != null) {
+                        out.writeByte(entry.cell.bits());
+                        out.writeDouble(entry.cell.number());
+                        writeString(out, entry.cell.text());
+                        writeString(out, entry.cell.formula());
+                    }
+                }
+            }
+
+            try {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Strings may be longer than writeUTF allows, and may be null.
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length) {
+            throw new EOFException("Truncated index file");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
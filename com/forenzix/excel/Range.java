@@ -0,0 +1,172 @@
+package com.forenzix.excel;
+
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * A rectangular area of a sheet, such as B2:B500, and the numbers in it. Like
+ * in Excel, an area may also be whole columns (B:D) or whole rows (2:5).
+ * <p>
+ * The numbers of a range are read from the sheet once, into a primitive array,
+ * and aggregated in plain loops over that array. Ranges are immutable, and can
+ * be aggregated from any number of threads.
+ *
+ * @see WorkbookSnapshot.Sheet#getNumbers
+ */
+public final class Range {
+
+    private static final int MAX_ROW = 0xFFFFF, MAX_COLUMN = 0x3FFF;
+
+    private final WorkbookSnapshot.Sheet sheet;
+    private final int firstRow, firstCol, lastRow, lastCol;
+
+    // Read on first use. Every thread reads the same numbers, so a race only
+    // costs reading them twice.
+    private volatile double[] values;
+
+    private Range(WorkbookSnapshot.Sheet sheet, int firstRow, int firstCol, int lastRow, int lastCol) {
+        this.sheet = sheet;
+        this.firstRow = firstRow;
+        this.firstCol = firstCol;
+        this.lastRow = lastRow;
+        this.lastCol = lastCol;
+    }
+
+    /**
+     * Parses a range of the given sheet. The sheet name of the range, if any, is
+     * checked but not kept (see {@link #sheetName}).
+     *
+     * @param sheet     the sheet of the range
+     * @param reference two A1 or R1C1 addresses separated by a colon, such as
+     *                  $B$2:$B$500 or Data!B:B
+     * @return the range, or null if the reference is not a range
+     */
+    public static Range parse(WorkbookSnapshot.Sheet sheet, String reference) {
+        final int[] bounds = bounds(reference);
+        return bounds == null ? null : new Range(sheet, bounds[0], bounds[1], bounds[2], bounds[3]);
+    }
+
+    // The first row, first column, last row and last column of a range, or null
+    // if the reference is not a range.
+    static int[] bounds(String reference) {
+        final int colon = reference.indexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+
+        final long first = Address.parse(reference, 0, colon), last = Address.parse(reference, colon + 1, reference.length());
+        if (first == Address.INVALID || last == Address.INVALID) {
+            return null;
+        }
+
+        int row1 = Address.row(first), col1 = Address.column(first);
+        int row2 = Address.row(last), col2 = Address.column(last);
+        if (col1 < -1 || col2 < -1 || (row1 < 0) != (row2 < 0) || (col1 < 0) != (col2 < 0) || (row1 < 0 && col1 < 0)) {
+            return null; // Both ends must be cells, columns, or rows alike
+        }
+
+        if (row1 < 0) {
+            row1 = 0;
+            row2 = MAX_ROW;
+        } else if (col1 < 0) {
+            col1 = 0;
+            col2 = MAX_COLUMN;
+        }
+        return new int[] { Math.min(row1, row2), Math.min(col1, col2), Math.max(row1, row2), Math.max(col1, col2) };
+    }
+
+    /**
+     * Returns the sheet name of a range, unquoted.
+     *
+     * @param reference a range, such as 'My Data'!$B$2:$B$500
+     * @return the sheet name, or null if the range has none
+     */
+    public static String sheetName(String reference) {
+        final int colon = reference.indexOf(':');
+        return Address.sheetName(colon < 0 ? reference : reference.substring(0, colon));
+    }
+
+    public WorkbookSnapshot.Sheet getSheet() {
+        return sheet;
+    }
+
+    /**
+     * Returns the numbers of the range, row by row. Cells that do not hold a
+     * number, or a formula with a numeric result, are left out. The array is
+     * shared, and must not be changed.
+     */
+    public double[] values() {
+        double[] values = this.values;
+        if (values == null) {
+            this.values = values = sheet.getNumbers(firstRow, firstCol, lastRow, lastCol);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the number of numbers in the range, like Excel's COUNT.
+     */
+    public int count() {
+        return values().length;
+    }
+
+    public double sum() {
+        final double[] values = values();
+        double sum = 0;
+        for (int i = 0; i < values.length; i += 1) {
+            sum += values[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the smallest number of the range, or 0 if there are none, like
+     * Excel's MIN.
+     */
+    public double min() {
+        final double[] values = values();
+        if (values.length == 0) {
+            return 0;
+        }
+        double min = values[0];
+        for (int i = 1; i < values.length; i += 1) {
+            min = Math.min(min, values[i]);
+        }
+        return min;
+    }
+
+    /**
+     * Returns the largest number of the range, or 0 if there are none, like
+     * Excel's MAX.
+     */
+    public double max() {
+        final double[] values = values();
+        if (values.length == 0) {
+            return 0;
+        }
+        double max = values[0];
+        for (int i = 1; i < values.length; i += 1) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the mean of the numbers of the range.
+     *
+     * @throws IllegalArgumentException if there are no numbers in the range (where
+     *                                  Excel's AVERAGE gives #DIV/0!)
+     */
+    public double average() {
+        final double[] values = values();
+        if (values.length == 0) {
+            throw new IllegalArgumentException("Range " + this + " holds no numbers to average.");
+        }
+        return sum() / values.length;
+    }
+
+    @Override
+    public String toString() {
+        return sheet + "!" + new CellReference(firstRow, firstCol).formatAsString() + ":"
+                + new CellReference(lastRow, lastCol).formatAsString();
+    }
+}
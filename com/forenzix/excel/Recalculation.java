@@ -0,0 +1,458 @@
+package com.forenzix.excel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.AreaPtgBase;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.Pxg;
+import org.apache.poi.ss.formula.ptg.Pxg3D;
+import org.apache.poi.ss.formula.ptg.RefPtgBase;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFFormulaEvaluator;
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Recalculates the formula cells a report reads, rather than trusting the
+ * results cached in the workbook file, which are only as fresh as the last
+ * application that saved it. Only what the wanted cells depend on is
+ * recalculated:
+ * <ol>
+ * <li>the formulas of the wanted cells are parsed, then those of the formula
+ * cells they refer to, and so on, which gives the cone of formula cells the
+ * wanted cells depend on;
+ * <li>the cone is split into components that share no formula cell, and the
+ * components into batches of about the same size;
+ * <li>every batch is evaluated on a thread of its own, with a workbook and an
+ * evaluator of its own, precedents first, so that every formula is evaluated
+ * once per batch and the evaluator never recurses deep into a chain of formulas.
+ * </ol>
+ * Formulas whose precedents cannot be told by parsing them (INDIRECT, OFFSET...)
+ * are still evaluated correctly, since evaluators look up whatever they need,
+ * but their hidden precedents may be evaluated by more than one batch. Formula
+ * cells that cannot be evaluated (such as those calling a function POI does not
+ * implement) keep their cached results.
+ * <p>
+ * POI does not make any promise about using a workbook from several threads,
+ * even only to read it. So the first batch is evaluated on the calling thread,
+ * with the workbook the cone was built from, and every other batch with a
+ * workbook opened again from the same file. No workbook, cell or evaluator is
+ * ever used by two threads. Since every extra batch holds a whole workbook in
+ * memory, only large cones are split.
+ *
+ * @see WorkbookSnapshot#of(XSSFWorkbook, Map)
+ */
+public final class Recalculation {
+
+    /**
+     * The number of formula cells recalculated, and of those that kept their
+     * cached results, across every workbook.
+     */
+    public static final LongAdder RECALCULATED = new LongAdder(), KEPT = new LongAdder();
+
+    // Fewer formulas than this are not worth opening the workbook again for.
+    private static final int MIN_BATCH = 1024;
+
+    private final XSSFWorkbook workbook;
+    private final XSSFEvaluationWorkbook parsing;
+    private final List<XSSFName> definedNames;
+
+    // The cone: every formula cell, with the formula cells it refers to.
+    private final Map<XSSFCell, List<XSSFCell>> precedents = new HashMap<>();
+    private final Deque<XSSFCell> pending = new ArrayDeque<>();
+    private final List<XSSFCell> found = new ArrayList<>();
+    private final Map<Integer, List<Ptg>> names = new HashMap<>();
+    private final Set<Integer> resolving = new HashSet<>();
+
+    private Recalculation(XSSFWorkbook workbook) {
+        this.workbook = workbook;
+        this.parsing = XSSFEvaluationWorkbook.create(workbook);
+        this.definedNames = workbook.getAllNames();
+    }
+
+    /**
+     * Reads a snapshot from a workbook file, with the wanted formula cells, and
+     * every formula cell they depend on, recalculated. Other cells hold their
+     * cached results.
+     *
+     * @param file      path of a workbook file
+     * @param names     tells which defined names are wanted
+     * @param addresses addresses of other wanted cells. Addresses without a sheet
+     *                  name are wanted on every sheet. The sheet name may also be
+     *                  the code name of a sheet.
+     * @param ranges    ranges of other wanted cells, such as B2:B500 or Data!B:B.
+     *                  Ranges without a sheet name are wanted on every sheet.
+     * @param executor  runs the batches of formulas
+     * @return the snapshot
+     * @throws IOException if the workbook cannot be read
+     */
+    public static WorkbookSnapshot read(Path file, Predicate<String> names, Collection<CellReference> addresses,
+            Collection<String> ranges, Executor executor) throws IOException {
+        try (final XSSFWorkbook workbook = WorkbookSnapshot.open(file)) {
+            final Recalculation recalculation = new Recalculation(workbook);
+            recalculation.want(names, addresses, ranges);
+            return WorkbookSnapshot.of(workbook, recalculation.evaluate(file, executor));
+        }
+    }
+
+    /***************************************************************************
+     * Cone
+     **************************************************************************/
+
+    private void want(Predicate<String> names, Collection<CellReference> addresses, Collection<String> ranges) {
+        for (int i = 0; i < definedNames.size(); i += 1) {
+            if (names.test(definedNames.get(i).getNameName())) {
+                refers(name(i), -1);
+            }
+        }
+
+        for (CellReference ref : addresses) {
+            for (XSSFSheet sheet : sheets(ref.getSheetName())) {
+                area(sheet, ref.getRow(), ref.getCol(), ref.getRow(), ref.getCol());
+            }
+        }
+
+        for (String range : ranges) {
+            final int[] bounds = Range.bounds(range);
+            if (bounds != null) {
+                for (XSSFSheet sheet : sheets(Range.sheetName(range))) {
+                    area(sheet, bounds[0], bounds[1], bounds[2], bounds[3]);
+                }
+            }
+        }
+
+        // Every formula cell of the cone refers to cells that may be formulas too.
+        while (!pending.isEmpty()) {
+            final XSSFCell cell = pending.pop();
+            final int sheet = workbook.getSheetIndex(cell.getSheet());
+
+            Ptg[] formula;
+            try {
+                formula = FormulaParser.parse(cell.getCellFormula(), parsing, FormulaType.CELL, sheet, cell.getRowIndex());
+            } catch (RuntimeException e) {
+                formula = new Ptg[0]; // Left to the evaluator, which keeps the cached result
+            }
+
+            found.clear();
+            refers(List.of(formula), sheet);
+            precedents.get(cell).addAll(found);
+        }
+        found.clear();
+    }
+
+    // Adds the cells a formula refers to.
+    private void refers(List<Ptg> formula, int sheet) {
+        for (Ptg ptg : formula) {
+            if (ptg instanceof Pxg && ((Pxg) ptg).getExternalWorkbookNumber() > 0) {
+                continue; // Another workbook
+            }
+
+            if (ptg instanceof RefPtgBase) {
+                final RefPtgBase ref = (RefPtgBase) ptg;
+                for (XSSFSheet target : sheets(ptg, sheet)) {
+                    area(target, ref.getRow(), ref.getColumn(), ref.getRow(), ref.getColumn());
+                }
+            } else if (ptg instanceof AreaPtgBase) {
+                final AreaPtgBase area = (AreaPtgBase) ptg;
+                for (XSSFSheet target : sheets(ptg, sheet)) {
+                    area(target, area.getFirstRow(), area.getFirstColumn(), area.getLastRow(), area.getLastColumn());
+                }
+            } else if (ptg instanceof NamePtg) {
+                // Names may refer to one another, round in circles.
+                final int index = ((NamePtg) ptg).getIndex();
+                if (resolving.add(index)) {
+                    refers(name(index), sheet);
+                    resolving.remove(index);
+                }
+            }
+        }
+    }
+
+    // The parsed formula of a defined name.
+    private List<Ptg> name(int index) {
+        return names.computeIfAbsent(index, i -> {
+            try {
+                final XSSFName name = definedNames.get(i);
+                return List.of(FormulaParser.parse(name.getRefersToFormula(), parsing, FormulaType.NAMEDRANGE,
+                        name.getSheetIndex()));
+            } catch (RuntimeException e) {
+                return List.of(); // Not a formula POI can parse
+            }
+        });
+    }
+
+    // Adds the formula cells of an area to the cone.
+    private void area(XSSFSheet sheet, int firstRow, int firstCol, int lastRow, int lastCol) {
+        if (sheet == null || firstRow < 0 || firstCol < 0) {
+            return;
+        }
+
+        final int rows = Math.min(lastRow, sheet.getLastRowNum());
+        for (int r = firstRow; r <= rows; r += 1) {
+            final XSSFRow row = sheet.getRow(r);
+            if (row == null) {
+                continue;
+            }
+            final int cols = Math.min(lastCol, row.getLastCellNum() - 1);
+            for (int c = firstCol; c <= cols; c += 1) {
+                final XSSFCell cell = row.getCell(c);
+                if (cell != null && cell.getCellType() == CellType.FORMULA) {
+                    if (precedents.putIfAbsent(cell, new ArrayList<>()) == null) {
+                        pending.push(cell);
+                    }
+                    found.add(cell);
+                }
+            }
+        }
+    }
+
+    // The sheets a wanted cell is on: the sheet with the given name or code name,
+    // or every sheet if there is no name.
+    private List<XSSFSheet> sheets(String name) {
+        if (name == null) {
+            final List<XSSFSheet> sheets = new ArrayList<>();
+            workbook.forEach(sheet -> sheets.add((XSSFSheet) sheet));
+            return sheets;
+        }
+        final XSSFSheet sheet = workbook.getSheet(name);
+        if (sheet != null) {
+            return List.of(sheet);
+        }
+
+        // Sheets are also known by their code names.
+        for (int i = 0; i < workbook.getNumberOfSheets(); i += 1) {
+            if (name.equals(WorkbookSnapshot.codeName(workbook.getSheetAt(i)))) {
+                return List.of(workbook.getSheetAt(i));
+            }
+        }
+        return List.of();
+    }
+
+    // The sheets a reference is on: its own sheet (or sheets, from one to another),
+    // or the sheet of the formula.
+    private List<XSSFSheet> sheets(Ptg ptg, int sheet) {
+        if (!(ptg instanceof Pxg) || ((Pxg) ptg).getSheetName() == null) {
+            return sheet < 0 ? List.of() : List.of(workbook.getSheetAt(sheet));
+        }
+
+        final int first = workbook.getSheetIndex(((Pxg) ptg).getSheetName());
+        final int last = ptg instanceof Pxg3D && ((Pxg3D) ptg).getLastSheetName() != null
+                ? workbook.getSheetIndex(((Pxg3D) ptg).getLastSheetName())
+                : first;
+        if (first < 0 || last < 0) {
+            return List.of();
+        }
+
+        final List<XSSFSheet> sheets = new ArrayList<>();
+        for (int i = Math.min(first, last); i <= Math.max(first, last); i += 1) {
+            sheets.add(workbook.getSheetAt(i));
+        }
+        return sheets;
+    }
+
+    /***************************************************************************
+     * Evaluation
+     **************************************************************************/
+
+    // Evaluates the cone, and returns the result of every formula cell that could
+    // be evaluated. The workbook of the given file is only ever used on this
+    // thread; other batches open the file again, and are told their cells by
+    // position, which is worked out here.
+    private Map<XSSFCell, CellValue> evaluate(Path file, Executor executor) throws IOException {
+        final List<List<XSSFCell>> batches = new ArrayList<>();
+        for (List<XSSFCell> batch : batches()) {
+            batches.add(order(batch));
+        }
+        if (batches.isEmpty()) {
+            return Map.of();
+        }
+
+        final List<CompletableFuture<CellValue[]>> others = new ArrayList<>();
+        for (List<XSSFCell> batch : batches.subList(1, batches.size())) {
+            final int[] positions = positions(batch);
+            others.add(CompletableFuture.supplyAsync(() -> evaluate(file, positions), executor));
+        }
+
+        final Map<XSSFCell, CellValue> values = new HashMap<>();
+        collect(batches.get(0), evaluate(workbook, batches.get(0)), values);
+        for (int i = 0; i < others.size(); i += 1) {
+            try {
+                collect(batches.get(i + 1), others.get(i).join(), values);
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        return values;
+    }
+
+    private static void collect(List<XSSFCell> cells, CellValue[] results, Map<XSSFCell, CellValue> values) {
+        for (int i = 0; i < results.length; i += 1) {
+            if (results[i] != null) {
+                values.put(cells.get(i), results[i]);
+            }
+        }
+    }
+
+    // The sheet index, row and column of every cell, one after the other.
+    private int[] positions(List<XSSFCell> cells) {
+        final int[] positions = new int[cells.size() * 3];
+        for (int i = 0; i < cells.size(); i += 1) {
+            final XSSFCell cell = cells.get(i);
+            positions[3 * i] = workbook.getSheetIndex(cell.getSheet());
+            positions[3 * i + 1] = cell.getRowIndex();
+            positions[3 * i + 2] = cell.getColumnIndex();
+        }
+        return positions;
+    }
+
+    // Evaluates the cells at the given positions with a workbook of their own.
+    private static CellValue[] evaluate(Path file, int[] positions) {
+        try (final XSSFWorkbook workbook = WorkbookSnapshot.open(file)) {
+            final List<XSSFCell> cells = new ArrayList<>(positions.length / 3);
+            for (int i = 0; i < positions.length; i += 3) {
+                cells.add(workbook.getSheetAt(positions[i]).getRow(positions[i + 1]).getCell(positions[i + 2]));
+            }
+            return evaluate(workbook, cells);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Splits the cone into components that share no formula cell (keeping track
+    // of them as sets that are merged whenever a cell refers to another), then
+    // deals the components out to batches, largest first, each to the smallest
+    // batch so far.
+    private List<List<XSSFCell>> batches() {
+        final List<XSSFCell> cells = new ArrayList<>(precedents.keySet());
+        final Map<XSSFCell, Integer> indices = new HashMap<>();
+        for (int i = 0; i < cells.size(); i += 1) {
+            indices.put(cells.get(i), i);
+        }
+
+        final int[] parents = new int[cells.size()];
+        for (int i = 0; i < parents.length; i += 1) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < cells.size(); i += 1) {
+            for (XSSFCell precedent : precedents.get(cells.get(i))) {
+                parents[root(parents, i)] = root(parents, indices.get(precedent));
+            }
+        }
+
+        final Map<Integer, List<XSSFCell>> components = new HashMap<>();
+        for (int i = 0; i < cells.size(); i += 1) {
+            components.computeIfAbsent(root(parents, i), k -> new ArrayList<>()).add(cells.get(i));
+        }
+
+        final int count = Math.min(components.size(),
+                Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), cells.size() / MIN_BATCH)));
+        final PriorityQueue<List<XSSFCell>> batches = new PriorityQueue<>(Math.max(1, count),
+                Comparator.comparingInt(List::size));
+        for (int i = 0; i < count; i += 1) {
+            batches.add(new ArrayList<>());
+        }
+
+        final List<List<XSSFCell>> largest = new ArrayList<>(components.values());
+        largest.sort(Comparator.comparingInt(List<XSSFCell>::size).reversed());
+        for (List<XSSFCell> component : largest) {
+            final List<XSSFCell> batch = batches.poll();
+            batch.addAll(component);
+            batches.add(batch);
+        }
+        return new ArrayList<>(batches);
+    }
+
+    private static int root(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    // Orders the cells of a batch so that every cell comes after the cells it
+    // refers to, except round circular references.
+    private List<XSSFCell> order(List<XSSFCell> batch) {
+        final List<XSSFCell> order = new ArrayList<>(batch.size());
+        final Set<XSSFCell> visited = new HashSet<>();
+        final Deque<XSSFCell> cells = new ArrayDeque<>();
+        final Deque<Iterator<XSSFCell>> next = new ArrayDeque<>();
+
+        for (XSSFCell start : batch) {
+            if (!visited.add(start)) {
+                continue;
+            }
+            cells.push(start);
+            next.push(precedents.get(start).iterator());
+
+            while (!cells.isEmpty()) {
+                final Iterator<XSSFCell> precedents = next.peek();
+                if (precedents.hasNext()) {
+                    final XSSFCell precedent = precedents.next();
+                    if (visited.add(precedent)) {
+                        cells.push(precedent);
+                        next.push(this.precedents.get(precedent).iterator());
+                    }
+                } else {
+                    next.pop();
+                    order.add(cells.pop());
+                }
+            }
+        }
+        return order;
+    }
+
+    // Evaluates the given cells in order, and returns their results, with null
+    // for the cells that keep their cached results.
+    private static CellValue[] evaluate(XSSFWorkbook workbook, List<XSSFCell> order) {
+        final XSSFFormulaEvaluator evaluator = XSSFFormulaEvaluator.create(workbook, null, null);
+        final CellValue[] values = new CellValue[order.size()];
+        for (int i = 0; i < values.length; i += 1) {
+            try {
+                values[i] = evaluator.evaluate(order.get(i));
+            } catch (RuntimeException | LinkageError e) {
+                // Including functions whose implementation needs a library that
+                // is missing (NoClassDefFoundError)
+                values[i] = null;
+            }
+
+            if (values[i] != null) {
+                RECALCULATED.increment();
+            } else {
+                KEPT.increment();
+            }
+        }
+        return values;
+    }
+}
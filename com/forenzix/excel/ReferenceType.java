@@ -1,5 +0,0 @@
-package com.forenzix.excel;
-
-public enum ReferenceType {
-    CELL, COLUMN, ROW, INVALID
-}
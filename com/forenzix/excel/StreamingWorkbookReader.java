@@ -0,0 +1,769 @@
+package com.forenzix.excel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.ss.usermodel.BuiltinFormats;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.forenzix.common.MappedZip;
+import com.forenzix.common.Pair;
+
+/**
+ * Reads a {@link WorkbookSnapshot} that only holds the cells it is asked for,
+ * without ever building the workbook's XML tree. The parts of the workbook file
+ * are inflated straight out of the zip archive as they are streamed through SAX
+ * handlers, one after the other:
+ * <ol>
+ * <li>the workbook part, for the sheets, the defined names and the date system;
+ * <li>the styles, to tell which cells are formatted as dates;
+ * <li>every sheet, keeping only the wanted cells, and stopping after the last
+ * row that holds one;
+ * <li>the shared strings, keeping only the ones the wanted cells use.
+ * </ol>
+ * Other parts are never inflated. Time and memory therefore grow with the number
+ * of cells wanted rather than with the size of the workbook.
+ * <p>
+ * Cells are read from the raw values of the file, the same way POI reads them,
+ * except for the formula text of cells that share the formula of another cell,
+ * which reads as null. Every defined name is listed in the snapshot, whether its
+ * cell is loaded or not. The sheets of the snapshot know which of their cells
+ * were loaded, and refuse to read the others (see
+ * {@link WorkbookSnapshot.NotLoadedException}), since those are not known to be
+ * blank.
+ *
+ * @see WorkbookSnapshot
+ */
+public final class StreamingWorkbookReader {
+
+    private static final int MAX_COLUMN = 0x3FFF;
+
+    private StreamingWorkbookReader() {
+    }
+
+    /**
+     * Reads the wanted cells of a workbook into a snapshot.
+     *
+     * @param contents  contents of a workbook file
+     * @param names     tells which defined names are wanted. The cells of every
+     *                  wanted name that refers to a single cell or an area are
+     *                  loaded.
+     * @param addresses addresses of other cells to load. Addresses without a
+     *                  sheet name are loaded from every sheet.
+     * @return the snapshot
+     * @throws IOException if the workbook cannot be read
+     */
+    public static WorkbookSnapshot read(byte[] contents, Predicate<String> names, Collection<CellReference> addresses)
+            throws IOException {
+        try (final MappedZip zip = MappedZip.of(contents)) {
+            return read(zip, names, addresses, List.of());
+        }
+    }
+
+    /**
+     * Reads the wanted cells of a workbook into a snapshot. Only the parts named
+     * above are inflated; the rest of the workbook file is never touched.
+     *
+     * @param zip       a workbook file
+     * @param names     tells which defined names are wanted. The cells of every
+     *                  wanted name that refers to a single cell or an area are
+     *                  loaded.
+     * @param addresses addresses of other cells to load. Addresses without a
+     *                  sheet name are loaded from every sheet. The sheet name may
+     *                  also be the code name of a sheet.
+     * @param ranges    ranges of other cells to load, such as B2:B500 or Data!B:B.
+     *                  Ranges without a sheet name are loaded from every sheet.
+     * @return the snapshot
+     * @throws IOException if the workbook cannot be read
+     */
+    public static WorkbookSnapshot read(MappedZip zip, Predicate<String> names, Collection<CellReference> addresses,
+            Collection<String> ranges) throws IOException {
+        try {
+            return read(new Parts(zip), names, addresses, ranges);
+        } catch (SAXException e) {
+            throw new IOException("Cannot read workbook: " + e.getMessage(), e);
+        }
+    }
+
+    private static WorkbookSnapshot read(Parts parts, Predicate<String> names, Collection<CellReference> addresses,
+            Collection<String> ranges) throws IOException, SAXException {
+
+        // 1. Workbook
+        final WorkbookHandler workbook = new WorkbookHandler();
+        parse(parts.open(parts.workbook), workbook);
+        final Map<String, Pair<String, String>> related = parts.relationships(parts.workbook);
+
+        // Work out which cells to keep on which sheet
+        final Set<Long> everywhere = new HashSet<>();
+        final Map<String, Set<Long>> wanted = new HashMap<>();
+        for (CellReference ref : addresses) {
+            if (ref.getRow() < 0 || ref.getCol() < 0 || ref.getCol() > MAX_COLUMN) {
+                continue; // Not an address in a sheet, though it parses as one
+            }
+            if (ref.getSheetName() == null) {
+                everywhere.add(address(ref.getRow(), ref.getCol()));
+            } else {
+                wanted.computeIfAbsent(ref.getSheetName(), k -> new HashSet<>()).add(address(ref.getRow(), ref.getCol()));
+            }
+        }
+
+        final List<int[]> everywhereAreas = new ArrayList<>();
+        final Map<String, List<int[]>> wantedAreas = new HashMap<>();
+        for (String range : ranges) {
+            final int[] bounds = Range.bounds(range);
+            if (bounds != null) {
+                final String sheet = Range.sheetName(range);
+                (sheet == null ? everywhereAreas : wantedAreas.computeIfAbsent(sheet, k -> new ArrayList<>())).add(bounds);
+            }
+        }
+
+        for (Pair<String, String> name : workbook.names) {
+            if (!names.test(name.key) || name.value == null) {
+                continue;
+            }
+            if (name.value.contains(":")) {
+                final int[] bounds = Range.bounds(name.value);
+                final String sheet = Range.sheetName(name.value);
+                if (bounds != null && sheet != null) {
+                    wantedAreas.computeIfAbsent(sheet, k -> new ArrayList<>()).add(bounds);
+                }
+                continue;
+            }
+
+            final CellReference ref;
+            try {
+                ref = new CellReference(name.value);
+            } catch (RuntimeException e) {
+                continue; // Not a cell reference
+            }
+            if (ref.getSheetName() != null && ref.getRow() >= 0 && ref.getCol() >= 0 && ref.getCol() <= MAX_COLUMN) {
+                wanted.computeIfAbsent(ref.getSheetName(), k -> new HashSet<>()).add(address(ref.getRow(), ref.getCol()));
+            }
+        }
+
+        // 2. Styles
+        final StylesHandler styles = new StylesHandler();
+        final String stylesPart = Parts.find(related, "/styles");
+        if (stylesPart != null) {
+            parse(parts.open(stylesPart), styles);
+        }
+
+        // 3. Sheets
+        final List<SheetHandler> sheets = new ArrayList<>();
+        for (Pair<String, String> entry : workbook.sheets) {
+            final Pair<String, String> rel = related.get(entry.value);
+            if (rel == null || !(rel.key.endsWith("/worksheet") || rel.key.endsWith("/chartsheet"))) {
+                continue; // Same as POI: only worksheets and chart sheets are sheets
+            }
+
+            final SheetHandler sheet = new SheetHandler(entry.key, everywhere, everywhereAreas, wanted, wantedAreas);
+            try {
+                parse(parts.open(rel.value), sheet);
+            } catch (Done e) {
+            }
+            sheets.add(sheet);
+        }
+
+        // 4. Shared strings
+        final SharedStringsHandler strings = new SharedStringsHandler();
+        for (SheetHandler sheet : sheets) {
+            for (RawCell cell : sheet.cells) {
+                if (cell.isSharedString()) {
+                    strings.wanted.add(cell.sharedString());
+                }
+            }
+        }
+        final String stringsPart = Parts.find(related, "/sharedStrings");
+        if (!strings.wanted.isEmpty() && stringsPart != null) {
+            try {
+                parse(parts.open(stringsPart), strings);
+            } catch (Done e) {
+            }
+        }
+
+        final Map<String, String> interned = new HashMap<>();
+        final List<WorkbookSnapshot.Sheet> snapshots = new ArrayList<>(sheets.size());
+        for (SheetHandler sheet : sheets) {
+            final WorkbookSnapshot.Cells cells = new WorkbookSnapshot.Cells(interned);
+            for (RawCell cell : sheet.cells) {
+                cell.addTo(cells, styles, strings.values);
+            }
+            snapshots.add(new WorkbookSnapshot.Sheet(sheet.name, sheet.codeName, workbook.date1904, cells,
+                    sheet.loaded(), sheet.areas));
+        }
+
+        return new WorkbookSnapshot(workbook.date1904, snapshots, workbook.names);
+    }
+
+    private static long address(int row, int col) {
+        return WorkbookSnapshot.address(row, col);
+    }
+
+    private static void parse(InputStream data, DefaultHandler handler) throws IOException, SAXException {
+        try (data) {
+            final XMLReader reader = XMLHelper.newXMLReader();
+            reader.setContentHandler(handler);
+            reader.parse(new InputSource(data));
+        } catch (ParserConfigurationException e) {
+            throw new SAXException(e);
+        }
+    }
+
+    // Thrown by a handler that has read everything it needs.
+    private static final class Done extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        Done() {
+            super("Done");
+        }
+    }
+
+    // Strings in the file escape some characters as _xHHHH_.
+    private static String decode(String text) {
+        if (text.indexOf("_x") == -1) {
+            return text;
+        }
+
+        final StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i += 1) {
+            final char c = text.charAt(i);
+            if (c == '_' && i + 6 < text.length() && text.charAt(i + 1) == 'x' && text.charAt(i + 6) == '_') {
+                try {
+                    builder.append((char) Integer.parseInt(text.substring(i + 2, i + 6), 16));
+                    i += 6;
+                    continue;
+                } catch (NumberFormatException e) {
+                }
+            }
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    /***************************************************************************
+     * Parts
+     **************************************************************************/
+    // The parts of the package, found through their relationships the way
+    // OPCPackage finds them, without opening any part that is not needed.
+    private static final class Parts {
+        private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+        final MappedZip zip;
+        final String workbook;
+
+        Parts(MappedZip zip) throws IOException, SAXException {
+            this.zip = zip;
+            this.workbook = find(relationships(""), "/officeDocument");
+            if (workbook == null || !zip.contains(workbook)) {
+                throw new IOException("Not a workbook file");
+            }
+        }
+
+        InputStream open(String part) throws IOException {
+            final InputStream in = zip.open(part);
+            if (in == null) {
+                throw new IOException("Missing part: /" + part);
+            }
+            return in;
+        }
+
+        // Relationships of the given part (or of the package itself for the empty
+        // name), by id, each with its type and the name of the part it targets.
+        Map<String, Pair<String, String>> relationships(String part) throws IOException, SAXException {
+            final int slash = part.lastIndexOf('/');
+            final String dir = part.substring(0, slash + 1);
+            final String rels = dir + "_rels/" + part.substring(slash + 1) + ".rels";
+
+            final Map<String, Pair<String, String>> related = new HashMap<>();
+            if (zip.contains(rels)) {
+                parse(zip.open(rels), new DefaultHandler() {
+                    @Override
+                    public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                        if (localName.equals("Relationship") && !"External".equals(attributes.getValue("TargetMode"))) {
+                            related.put(attributes.getValue("Id"),
+                                    Pair.of(attributes.getValue("Type"), resolve(dir, attributes.getValue("Target"))));
+                        }
+                    }
+                });
+            }
+            return related;
+        }
+
+        // The target of the first relationship of the given type. Transitional and
+        // strict documents use different schemas, but the same type names.
+        static String find(Map<String, Pair<String, String>> related, String type) {
+            for (Pair<String, String> rel : related.values()) {
+                if (rel.key != null && rel.key.endsWith(type)) {
+                    return rel.value;
+                }
+            }
+            return null;
+        }
+
+        private static String resolve(String dir, String target) {
+            final Deque<String> path = new ArrayDeque<>();
+            for (String segment : ((target.startsWith("/") ? "" : dir) + target).split("/")) {
+                if (segment.equals("..")) {
+                    path.pollLast();
+                } else if (!segment.isEmpty() && !segment.equals(".")) {
+                    path.addLast(segment);
+                }
+            }
+            return String.join("/", path);
+        }
+    }
+
+    /***************************************************************************
+     * Workbook
+     **************************************************************************/
+    private static final class WorkbookHandler extends DefaultHandler {
+        boolean date1904;
+        final List<Pair<String, String>> sheets = new ArrayList<>();
+        final List<Pair<String, String>> names = new ArrayList<>();
+
+        private String name;
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "workbookPr":
+                    final String value = attributes.getValue("date1904");
+                    date1904 = "1".equals(value) || "true".equals(value);
+                    break;
+                case "sheet":
+                    sheets.add(Pair.of(attributes.getValue("name"), attributes.getValue(Parts.RELATIONSHIPS, "id")));
+                    break;
+                case "definedName":
+                    name = attributes.getValue("name");
+                    text.setLength(0);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (name != null) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (localName.equals("definedName")) {
+                names.add(Pair.of(name, text.toString()));
+                name = null;
+            }
+        }
+    }
+
+    /***************************************************************************
+     * Styles
+     **************************************************************************/
+    private static final class StylesHandler extends DefaultHandler {
+        private final Map<Integer, String> formats = new HashMap<>();
+        private final List<Integer> cellFormats = new ArrayList<>();
+        private boolean inCellXfs;
+        private boolean[] dates;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "numFmt":
+                    formats.put(Integer.parseInt(attributes.getValue("numFmtId")), attributes.getValue("formatCode"));
+                    break;
+                case "cellXfs":
+                    inCellXfs = true;
+                    break;
+                case "xf":
+                    if (inCellXfs) {
+                        final String id = attributes.getValue("numFmtId");
+                        cellFormats.add(id == null ? 0 : Integer.parseInt(id));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (localName.equals("cellXfs")) {
+                inCellXfs = false;
+            }
+        }
+
+        // Whether the given cell style is a date format, as DateUtil sees it
+        boolean isDate(int style) {
+            if (dates == null) {
+                dates = new boolean[cellFormats.size()];
+                for (int i = 0; i < dates.length; i += 1) {
+                    final int id = cellFormats.get(i);
+                    final String format = formats.containsKey(id) ? formats.get(id) : BuiltinFormats.getBuiltinFormat(id);
+                    dates[i] = format != null && DateUtil.isADateFormat(id, format);
+                }
+            }
+            return style >= 0 && style < dates.length && dates[style];
+        }
+    }
+
+    /***************************************************************************
+     * Sheets
+     **************************************************************************/
+    private static final class SheetHandler extends DefaultHandler {
+        final String name;
+        String codeName;
+        final List<RawCell> cells = new ArrayList<>();
+
+        // The wanted cells, by sheet name or code name, which is only known once
+        // the sheet properties have been read.
+        private final Map<String, Set<Long>> wanted;
+        private final Map<String, List<int[]>> wantedAreas;
+
+        private final Set<Long> everywhere, here = new HashSet<>();
+        final List<int[]> areas;
+        private int lastRow = -1;
+
+        private int row = -1, col = -1;
+        private RawCell cell;
+        private StringBuilder text;
+        private boolean inInlineString, inPhonetic;
+
+        SheetHandler(String name, Set<Long> everywhere, List<int[]> everywhereAreas, Map<String, Set<Long>> wanted,
+                Map<String, List<int[]>> wantedAreas) {
+            this.name = name;
+            this.codeName = name;
+            this.everywhere = everywhere;
+            this.areas = new ArrayList<>(everywhereAreas);
+            this.wanted = wanted;
+            this.wantedAreas = wantedAreas;
+
+            for (long address : everywhere) {
+                lastRow = Math.max(lastRow, (int) (address >>> 16));
+            }
+            for (int[] area : areas) {
+                lastRow = Math.max(lastRow, area[2]);
+            }
+            want(name);
+        }
+
+        // Adds the cells wanted on the sheet under the given name.
+        private void want(String sheet) {
+            for (long address : wanted.getOrDefault(sheet, Set.of())) {
+                here.add(address);
+                lastRow = Math.max(lastRow, (int) (address >>> 16));
+            }
+            for (int[] area : wantedAreas.getOrDefault(sheet, List.of())) {
+                areas.add(area);
+                lastRow = Math.max(lastRow, area[2]);
+            }
+        }
+
+        // The addresses of the cells loaded, other than those in areas.
+        Set<Long> loaded() {
+            final Set<Long> loaded = new HashSet<>(here);
+            loaded.addAll(everywhere);
+            return loaded;
+        }
+
+        private boolean wanted(int row, int col) {
+            final long address = address(row, col);
+            if (here.contains(address) || everywhere.contains(address)) {
+                return true;
+            }
+            for (int[] area : areas) {
+                if (row >= area[0] && row <= area[2] && col >= area[1] && col <= area[3]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            switch (localName) {
+                case "sheetPr":
+                    // Same as POI: a sheetPr without a code name gives no code name
+                    codeName = attributes.getValue("codeName");
+                    if (codeName != null && !codeName.equals(name)) {
+                        want(codeName);
+                    }
+                    break;
+                case "row": {
+                    final String r = attributes.getValue("r");
+                    row = r == null ? row + 1 : Integer.parseInt(r) - 1;
+                    col = -1;
+                    if (row > lastRow) {
+                        throw new Done();
+                    }
+                    break;
+                }
+                case "c": {
+                    final String r = attributes.getValue("r");
+                    if (r == null) {
+                        col += 1;
+                    } else {
+                        final CellReference ref = new CellReference(r);
+                        row = ref.getRow();
+                        col = ref.getCol();
+                    }
+
+                    if (wanted(row, col)) {
+                        final String s = attributes.getValue("s");
+                        cell = new RawCell(row, col, attributes.getValue("t"), s == null ? 0 : Integer.parseInt(s));
+                    }
+                    break;
+                }
+                case "f":
+                    if (cell != null) {
+                        cell.formula = "";
+                        text = new StringBuilder();
+                    }
+                    break;
+                case "v":
+                    if (cell != null) {
+                        text = new StringBuilder();
+                    }
+                    break;
+                case "is":
+                    inInlineString = cell != null;
+                    if (inInlineString) {
+                        cell.inline = new StringBuilder();
+                    }
+                    break;
+                case "rPh":
+                    inPhonetic = true;
+                    break;
+                case "t":
+                    if (inInlineString && !inPhonetic) {
+                        text = new StringBuilder();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (text != null) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "c":
+                    if (cell != null) {
+                        cells.add(cell);
+                        cell = null;
+                    }
+                    break;
+                case "f":
+                    if (cell != null) {
+                        cell.formula = text.toString();
+                        text = null;
+                    }
+                    break;
+                case "v":
+                    if (cell != null) {
+                        cell.value = text.toString();
+                        text = null;
+                    }
+                    break;
+                case "is":
+                    inInlineString = false;
+                    break;
+                case "rPh":
+                    inPhonetic = false;
+                    break;
+                case "t":
+                    if (inInlineString && text != null) {
+                        cell.inline.append(text);
+                        text = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    // A cell as written in the file
+    private static final class RawCell {
+        final int row, col, style;
+        final String t;
+        String formula, value;
+        StringBuilder inline;
+
+        RawCell(int row, int col, String t, int style) {
+            this.row = row;
+            this.col = col;
+            this.t = t == null ? "n" : t;
+            this.style = style;
+        }
+
+        boolean isSharedString() {
+            return t.equals("s") && formula == null && value != null && !value.isEmpty();
+        }
+
+        int sharedString() {
+            return Integer.parseInt(value.trim());
+        }
+
+        // Reads the cell the way XSSFCell does.
+        void addTo(WorkbookSnapshot.Cells cells, StylesHandler styles, Map<Integer, String> strings) {
+            final CellType type, cached;
+            final CellType base = baseType();
+            if (formula != null) {
+                type = CellType.FORMULA;
+                cached = base == CellType.BLANK ? CellType.NUMERIC : base;
+            } else {
+                type = cached = base;
+            }
+
+            double number = 0.0;
+            String text = null;
+            boolean dateFormatted = false;
+            switch (cached) {
+                case NUMERIC:
+                    if (value != null && !value.isEmpty()) {
+                        try {
+                            number = Double.parseDouble(value);
+                        } catch (NumberFormatException e) {
+                            number = Double.NaN;
+                        }
+                    }
+                    dateFormatted = type == CellType.NUMERIC && styles.isDate(style) && DateUtil.isValidExcelDate(number);
+                    break;
+                case STRING:
+                    if (inline != null) {
+                        text = decode(inline.toString());
+                    } else if (t.equals("s") && type != CellType.FORMULA) {
+                        text = isSharedString() ? strings.getOrDefault(sharedString(), "") : "";
+                    } else {
+                        text = value == null ? "" : value;
+                    }
+                    break;
+                case ERROR:
+                    if (type == CellType.ERROR) {
+                        text = value;
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            final boolean truth = (type == CellType.BOOLEAN || type == CellType.FORMULA) && "1".equals(value);
+
+            // Cells that share the formula of another cell have no text of their own.
+            final String f = formula == null || formula.isEmpty() ? null : formula;
+            cells.add(row, col, type, cached, number, text, f, dateFormatted, truth);
+        }
+
+        private CellType baseType() {
+            switch (t) {
+                case "b":
+                    return CellType.BOOLEAN;
+                case "e":
+                    return CellType.ERROR;
+                case "s":
+                case "str":
+                case "inlineStr":
+                    return CellType.STRING;
+                default:
+                    return value == null ? CellType.BLANK : CellType.NUMERIC;
+            }
+        }
+    }
+
+    /***************************************************************************
+     * Shared strings
+     **************************************************************************/
+    private static final class SharedStringsHandler extends DefaultHandler {
+        final Set<Integer> wanted = new HashSet<>();
+        final Map<Integer, String> values = new HashMap<>();
+
+        private int index = -1;
+        private StringBuilder item, text;
+        private boolean inPhonetic;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            switch (localName) {
+                case "si":
+                    index += 1;
+                    if (values.size() == wanted.size()) {
+                        throw new Done();
+                    }
+                    item = wanted.contains(index) ? new StringBuilder() : null;
+                    break;
+                case "rPh":
+                    inPhonetic = true;
+                    break;
+                case "t":
+                    if (item != null && !inPhonetic) {
+                        text = new StringBuilder();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (text != null) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "si":
+                    if (item != null) {
+                        values.put(index, decode(item.toString()));
+                        item = null;
+                    }
+                    break;
+                case "rPh":
+                    inPhonetic = false;
+                    break;
+                case "t":
+                    if (text != null) {
+                        item.append(text);
+                        text = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,714 @@
+package com.forenzix.excel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.DateUtil;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.LocaleUtil;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTSheetPr;
+
+import com.forenzix.common.Pair;
+
+/**
+ * A compact, read-only copy of the values of a workbook. Reports only ever read
+ * cell values, so once a snapshot has been taken the workbook can be closed and
+ * its whole XML tree let go of.
+ * <p>
+ * Every sheet keeps its cells in a handful of parallel arrays sorted by address:
+ * one packed address, one byte holding the type of the cell, the type of its
+ * cached formula result and its flags, one double for numeric values, and one
+ * string for text, which is shared between all the cells with the same text.
+ * {@link Cell}s are views over these arrays, created when they are asked for,
+ * and read the same way as the POI cells they were taken from, down to the
+ * errors raised when a value of the wrong type is asked for.
+ * <p>
+ * Snapshots are immutable, and can be read from any number of threads.
+ */
+public final class WorkbookSnapshot {
+
+    private static final CellType[] TYPES = CellType.values();
+
+    // Layout of the type byte of a cell
+    private static final int TYPE_MASK = 0x7, CACHED_SHIFT = 3;
+    private static final int DATE_FORMATTED = 0x40, TRUE = 0x80;
+
+    private final boolean date1904;
+    private final List<Sheet> sheets;
+    private final Map<String, Sheet> sheetsByName;
+    private final List<Pair<String, String>> names;
+
+    WorkbookSnapshot(boolean date1904, List<Sheet> sheets, List<Pair<String, String>> names) {
+        final Map<String, Sheet> sheetsByName = new LinkedHashMap<>();
+        for (Sheet sheet : sheets) {
+            sheetsByName.put(sheet.name, sheet);
+        }
+
+        this.date1904 = date1904;
+        this.sheets = Collections.unmodifiableList(new ArrayList<>(sheets));
+        this.sheetsByName = Collections.unmodifiableMap(sheetsByName);
+        this.names = Collections.unmodifiableList(new ArrayList<>(names));
+    }
+
+    /**
+     * Takes a snapshot of an open workbook. The workbook is left open.
+     *
+     * @param workbook workbook to copy
+     * @return the snapshot
+     */
+    public static WorkbookSnapshot of(XSSFWorkbook workbook) {
+        return of(workbook, Collections.emptyMap());
+    }
+
+    /**
+     * Takes a snapshot of an open workbook, with the given results in place of the
+     * cached results of formula cells. The workbook is left open.
+     *
+     * @param workbook     workbook to copy
+     * @param recalculated results of formula cells, by cell
+     * @return the snapshot
+     * @see Recalculation
+     */
+    public static WorkbookSnapshot of(XSSFWorkbook workbook, Map<XSSFCell, CellValue> recalculated) {
+        final boolean date1904 = workbook.isDate1904();
+        final Map<String, String> strings = new HashMap<>();
+
+        final List<Sheet> sheets = new ArrayList<>(workbook.getNumberOfSheets());
+        for (int i = 0; i < workbook.getNumberOfSheets(); i += 1) {
+            final XSSFSheet sheet = workbook.getSheetAt(i);
+
+            final Cells cells = new Cells(strings);
+            for (Row row : sheet) {
+                for (org.apache.poi.ss.usermodel.Cell cell : row) {
+                    final CellValue result = recalculated.get(cell);
+                    if (result == null) {
+                        copy((XSSFCell) cell, cells);
+                    } else {
+                        copy((XSSFCell) cell, result, cells);
+                    }
+                }
+            }
+
+            sheets.add(new Sheet(sheet.getSheetName(), codeName(sheet),
+                    date1904, cells));
+        }
+
+        final List<Pair<String, String>> names = new ArrayList<>();
+        for (XSSFName name : workbook.getAllNames()) {
+            names.add(Pair.of(name.getNameName(), name.getRefersToFormula()));
+        }
+
+        return new WorkbookSnapshot(date1904, sheets, names);
+    }
+
+    // The code name of a sheet, or its name if it has none.
+    static String codeName(XSSFSheet sheet) {
+        final CTSheetPr sheetPr = sheet.getCTWorksheet().getSheetPr();
+        return sheetPr == null ? sheet.getSheetName() : sheetPr.getCodeName();
+    }
+
+    // Copies the value of a cell, in every form it can be read in.
+    private static void copy(XSSFCell cell, Cells cells) {
+        final CellType type = cell.getCellType();
+        final CellType value = type == CellType.FORMULA ? cell.getCachedFormulaResultType() : type;
+
+        double number = 0.0;
+        String text = null, formula = null;
+        boolean dateFormatted = false;
+        switch (value) {
+            case NUMERIC:
+                try {
+                    number = cell.getNumericCellValue();
+                } catch (IllegalStateException e) {
+                    number = Double.NaN; // Not a number, despite its type
+                }
+                dateFormatted = type == CellType.NUMERIC && DateUtil.isCellDateFormatted(cell);
+                break;
+            case STRING:
+                text = cell.getStringCellValue();
+                break;
+            case ERROR:
+                if (type == CellType.ERROR) {
+                    text = ErrorEval.getText(cell.getErrorCellValue());
+                }
+                break;
+            default:
+                break;
+        }
+
+        // Formula cells read as booleans whatever their result.
+        final boolean truth = (type == CellType.BOOLEAN || type == CellType.FORMULA) && cell.getBooleanCellValue();
+
+        // Formulas that POI cannot render are left out, and read as null.
+        if (type == CellType.FORMULA) {
+            try {
+                formula = cell.getCellFormula();
+            } catch (RuntimeException e) {
+            }
+        }
+
+        cells.add(cell.getRowIndex(), cell.getColumnIndex(), type, value, number, text, formula, dateFormatted, truth);
+    }
+
+    // Copies a formula cell with a recalculated result.
+    private static void copy(XSSFCell cell, CellValue result, Cells cells) {
+        final CellType value = result.getCellType();
+        final double number = value == CellType.NUMERIC ? result.getNumberValue() : 0.0;
+        final String text = value == CellType.STRING ? result.getStringValue() : null;
+
+        // Formula cells read as booleans from their raw value, which is "1" for
+        // true, and for the number or the text 1.
+        final boolean truth = value == CellType.BOOLEAN ? result.getBooleanValue()
+                : value == CellType.NUMERIC ? number == 1.0 : "1".equals(text);
+
+        String formula = null;
+        try {
+            formula = cell.getCellFormula();
+        } catch (RuntimeException e) {
+        }
+
+        cells.add(cell.getRowIndex(), cell.getColumnIndex(), CellType.FORMULA, value, number, text, formula, false, truth);
+    }
+
+    /**
+     * Reads a snapshot from a workbook file. The workbook is only open while the
+     * snapshot is being taken.
+     *
+     * @param file path of a workbook file
+     * @return the snapshot
+     * @throws IOException if the workbook cannot be read
+     */
+    public static WorkbookSnapshot read(Path file) throws IOException {
+        try (final XSSFWorkbook workbook = open(file)) {
+            return of(workbook);
+        }
+    }
+
+    // Opens a workbook file for reading only. Parts are read from the file as
+    // they are needed rather than all at once, and closing the workbook never
+    // writes it back.
+    static XSSFWorkbook open(Path file) throws IOException {
+        final OPCPackage pkg;
+        try {
+            pkg = OPCPackage.open(file.toFile(), PackageAccess.READ);
+        } catch (InvalidFormatException e) {
+            throw new IOException("Not a workbook: " + file, e);
+        }
+
+        try {
+            return new XSSFWorkbook(pkg);
+        } catch (IOException | RuntimeException e) {
+            pkg.revert();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the sheets of the workbook, in order.
+     */
+    public List<Sheet> getSheets() {
+        return sheets;
+    }
+
+    /**
+     * Returns the sheet with the given name, or null if there is none.
+     */
+    public Sheet getSheet(String name) {
+        return sheetsByName.get(name);
+    }
+
+    /**
+     * Returns the defined names of the workbook, each with the formula it refers
+     * to, in the order of the workbook. A name may appear more than once if it is
+     * defined for several sheets.
+     */
+    public List<Pair<String, String>> getNames() {
+        return names;
+    }
+
+    public boolean isDate1904() {
+        return date1904;
+    }
+
+    // Packs the (zero based) row and column of a cell. Columns fit in 16 bits.
+    static long address(int row, int col) {
+        return (long) row << 16 | col;
+    }
+
+    /**
+     * Collects the cells of a sheet, in any order, to build a Sheet from. Strings
+     * are shared through the given map, which is meant to be shared by all the
+     * sheets of a workbook.
+     */
+    static final class Cells {
+
+        private final Map<String, String> strings;
+
+        private long[] addresses = new long[16];
+        private byte[] types = new byte[16];
+        private double[] numbers = new double[16];
+        private String[] texts = new String[16];
+        private final Map<Integer, String> formulas = new HashMap<>();
+        private int size;
+        private boolean sorted = true;
+
+        Cells(Map<String, String> strings) {
+            this.strings = strings;
+        }
+
+        /**
+         * Adds a cell.
+         *
+         * @param type          type of the cell
+         * @param cached        type of the cached result of a formula cell, or the
+         *                      type of the cell
+         * @param number        numeric value, if the cell (or its result) is numeric
+         * @param text          text, if the cell (or its result) is a string, or the
+         *                      text of an error
+         * @param formula       formula of a formula cell
+         * @param dateFormatted whether a numeric cell is formatted as a date
+         * @param truth         value of the cell when read as a boolean
+         */
+        void add(int row, int col, CellType type, CellType cached, double number, String text, String formula,
+                boolean dateFormatted, boolean truth) {
+            add(row, col, type.ordinal() | cached.ordinal() << CACHED_SHIFT | (dateFormatted ? DATE_FORMATTED : 0)
+                    | (truth ? TRUE : 0), number, text, formula);
+        }
+
+        /**
+         * Adds a cell with the raw values of another cell.
+         *
+         * @see Cell#bits()
+         */
+        void add(int row, int col, int bits, double number, String text, String formula) {
+            if (size == addresses.length) {
+                final int capacity = size * 2;
+                addresses = Arrays.copyOf(addresses, capacity);
+                types = Arrays.copyOf(types, capacity);
+                numbers = Arrays.copyOf(numbers, capacity);
+                texts = Arrays.copyOf(texts, capacity);
+            }
+
+            final long address = address(row, col);
+            sorted &= size == 0 || addresses[size - 1] < address;
+
+            addresses[size] = address;
+            types[size] = (byte) bits;
+            numbers[size] = number;
+            texts[size] = text == null ? null : strings.computeIfAbsent(text, t -> t);
+            if (formula != null) {
+                formulas.put(size, strings.computeIfAbsent(formula, f -> f));
+            }
+            size += 1;
+        }
+
+        // Trims the arrays, and sorts them by address if the cells were not added
+        // in order.
+        private void seal() {
+            if (!sorted) {
+                final Integer[] order = new Integer[size];
+                for (int i = 0; i < size; i += 1) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, (a, b) -> Long.compare(addresses[a], addresses[b]));
+
+                final long[] a = new long[size];
+                final byte[] t = new byte[size];
+                final double[] n = new double[size];
+                final String[] x = new String[size];
+                final Map<Integer, String> f = new HashMap<>();
+                for (int i = 0; i < size; i += 1) {
+                    a[i] = addresses[order[i]];
+                    t[i] = types[order[i]];
+                    n[i] = numbers[order[i]];
+                    x[i] = texts[order[i]];
+                    if (formulas.containsKey(order[i])) {
+                        f.put(i, formulas.get(order[i]));
+                    }
+                }
+                addresses = a;
+                types = t;
+                numbers = n;
+                texts = x;
+                formulas.clear();
+                formulas.putAll(f);
+                sorted = true;
+            }
+
+            addresses = Arrays.copyOf(addresses, size);
+            types = Arrays.copyOf(types, size);
+            numbers = Arrays.copyOf(numbers, size);
+            texts = Arrays.copyOf(texts, size);
+        }
+    }
+
+    /**
+     * Thrown when a cell is read from a sheet that was only partly loaded, and the
+     * cell is not one of those that were. Such a cell is not known to be blank; it
+     * was never read.
+     *
+     * @see StreamingWorkbookReader
+     */
+    public static final class NotLoadedException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        NotLoadedException(Sheet sheet, String cells) {
+            super(sheet + "!" + cells + " was not loaded from the workbook.");
+        }
+    }
+
+    /**
+     * A sheet of a snapshot. A sheet may hold only some of the cells of the
+     * workbook sheet (see {@link StreamingWorkbookReader}), in which case reading
+     * a cell that was not loaded raises a {@link NotLoadedException}, rather than
+     * reading as blank.
+     */
+    public static final class Sheet {
+
+        // Areas checked cell by cell, when no single loaded area covers them
+        private static final int MAX_CHECKED_AREA = 4096;
+
+        private final String name, codeName;
+        private final boolean date1904;
+
+        // Parallel arrays, one element per cell, sorted by address
+        private final long[] addresses;
+        private final byte[] types;
+        private final double[] numbers;
+        private final String[] texts;
+
+        // Formulas are only kept for formula cells, if there are any.
+        private final Map<Integer, String> formulas;
+
+        // The cells that were loaded, as addresses and as areas (first row, first
+        // column, last row and last column), or null if all of them were.
+        private final Set<Long> loadedCells;
+        private final List<int[]> loadedAreas;
+
+        Sheet(String name, String codeName, boolean date1904, Cells cells) {
+            this(name, codeName, date1904, cells, null, null);
+        }
+
+        Sheet(String name, String codeName, boolean date1904, Cells cells, Set<Long> loadedCells,
+                List<int[]> loadedAreas) {
+            cells.seal();
+
+            this.name = name;
+            this.codeName = codeName;
+            this.date1904 = date1904;
+            this.addresses = cells.addresses;
+            this.types = cells.types;
+            this.numbers = cells.numbers;
+            this.texts = cells.texts;
+            this.formulas = cells.formulas.isEmpty() ? Collections.emptyMap() : new HashMap<>(cells.formulas);
+            this.loadedCells = loadedCells == null ? null : Set.copyOf(loadedCells);
+            this.loadedAreas = loadedAreas == null ? null : List.copyOf(loadedAreas);
+        }
+
+        public String getSheetName() {
+            return name;
+        }
+
+        /**
+         * Returns the code name of the sheet, or its name if it has none.
+         */
+        public String getCodeName() {
+            return codeName;
+        }
+
+        /**
+         * Tells whether the cell at the given (zero based) row and column was
+         * loaded, blank or not.
+         */
+        public boolean isLoaded(int row, int col) {
+            if (loadedCells == null || loadedCells.contains(address(row, col))) {
+                return true;
+            }
+            for (int[] area : loadedAreas) {
+                if (row >= area[0] && row <= area[2] && col >= area[1] && col <= area[3]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Tells whether every cell of an area of the sheet was loaded.
+         */
+        public boolean isLoaded(int firstRow, int firstCol, int lastRow, int lastCol) {
+            if (loadedCells == null) {
+                return true;
+            }
+            for (int[] area : loadedAreas) {
+                if (firstRow >= area[0] && lastRow <= area[2] && firstCol >= area[1] && lastCol <= area[3]) {
+                    return true;
+                }
+            }
+
+            if ((long) (lastRow - firstRow + 1) * (lastCol - firstCol + 1) > MAX_CHECKED_AREA) {
+                return false;
+            }
+            for (int row = firstRow; row <= lastRow; row += 1) {
+                for (int col = firstCol; col <= lastCol; col += 1) {
+                    if (!isLoaded(row, col)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Returns the cell at the given (zero based) row and column, or null if
+         * there is no cell there.
+         *
+         * @throws NotLoadedException if the cell was not loaded
+         */
+        public Cell getCell(int row, int col) {
+            if (row < 0 || col < 0 || col > 0xFFFF) {
+                return null;
+            }
+            if (!isLoaded(row, col)) {
+                throw new NotLoadedException(this, new CellReference(row, col).formatAsString());
+            }
+            final int index = Arrays.binarySearch(addresses, address(row, col));
+            return index < 0 ? null : new Cell(this, index);
+        }
+
+        /**
+         * Returns the numbers of the cells in an area of the sheet, row by row:
+         * those of numeric cells, and the results of numeric formula cells. Other
+         * cells (blank, text, boolean...) are left out, as Excel's aggregates leave
+         * them out of ranges.
+         *
+         * @param firstRow first row of the area (zero based)
+         * @param firstCol first column of the area
+         * @param lastRow  last row of the area, inclusive
+         * @param lastCol  last column of the area, inclusive
+         * @return the numbers, in a new array
+         * @throws NotLoadedException if some cells of the area were not loaded
+         */
+        public double[] getNumbers(int firstRow, int firstCol, int lastRow, int lastCol) {
+            if (!isLoaded(firstRow, firstCol, lastRow, lastCol)) {
+                throw new NotLoadedException(this, new CellReference(firstRow, firstCol).formatAsString() + ":"
+                        + new CellReference(lastRow, lastCol).formatAsString());
+            }
+            final int numeric = CellType.NUMERIC.ordinal();
+            final long last = address(lastRow, lastCol);
+            int i = Arrays.binarySearch(addresses, address(firstRow, firstCol));
+            i = i < 0 ? -i - 1 : i;
+
+            // Cells are sorted by row, then by column, so the area is a run of the
+            // arrays with the columns outside of it left out.
+            double[] found = new double[Math.min(16, addresses.length - i)];
+            int size = 0;
+            for (; i < addresses.length && addresses[i] <= last; i += 1) {
+                final int col = (int) (addresses[i] & 0xffff);
+                if (col < firstCol || col > lastCol || (types[i] >>> CACHED_SHIFT & TYPE_MASK) != numeric) {
+                    continue;
+                }
+                if (size == found.length) {
+                    found = Arrays.copyOf(found, size * 2);
+                }
+                found[size++] = numbers[i];
+            }
+            return size == found.length ? found : Arrays.copyOf(found, size);
+        }
+
+        /**
+         * Returns the number of cells in the sheet.
+         */
+        public int size() {
+            return addresses.length;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A cell of a snapshot. Its getters behave like those of the XSSFCell it was
+     * copied from.
+     */
+    public static final class Cell {
+
+        private final Sheet sheet;
+        private final int index;
+
+        private Cell(Sheet sheet, int index) {
+            this.sheet = sheet;
+            this.index = index;
+        }
+
+        // The type byte of the cell, and its other raw values, for copying it
+        int bits() {
+            return sheet.types[index] & 0xff;
+        }
+
+        double number() {
+            return sheet.numbers[index];
+        }
+
+        String text() {
+            return sheet.texts[index];
+        }
+
+        String formula() {
+            return sheet.formulas.get(index);
+        }
+
+        public CellType getCellType() {
+            return TYPES[bits() & TYPE_MASK];
+        }
+
+        /**
+         * Returns the type of the cached result of a formula cell.
+         *
+         * @throws IllegalStateException if the cell is not a formula cell
+         */
+        public CellType getCachedFormulaResultType() {
+            if (getCellType() != CellType.FORMULA) {
+                throw new IllegalStateException("Only formula cells have cached results");
+            }
+            return cachedType();
+        }
+
+        private CellType cachedType() {
+            return TYPES[bits() >>> CACHED_SHIFT & TYPE_MASK];
+        }
+
+        public Sheet getSheet() {
+            return sheet;
+        }
+
+        public int getRowIndex() {
+            return (int) (sheet.addresses[index] >>> 16);
+        }
+
+        public int getColumnIndex() {
+            return (int) (sheet.addresses[index] & 0xffff);
+        }
+
+        public double getNumericCellValue() {
+            final CellType value = cachedType();
+            switch (value) {
+                case BLANK:
+                    return 0.0;
+                case NUMERIC:
+                    return sheet.numbers[index];
+                default:
+                    throw typeMismatch(CellType.NUMERIC, value, false);
+            }
+        }
+
+        public Date getDateCellValue() {
+            if (getCellType() == CellType.BLANK) {
+                return null;
+            }
+            return DateUtil.getJavaDate(getNumericCellValue(), sheet.date1904);
+        }
+
+        public boolean getBooleanCellValue() {
+            final CellType type = getCellType();
+            switch (type) {
+                case BLANK:
+                    return false;
+                case BOOLEAN:
+                case FORMULA:
+                    return (bits() & TRUE) != 0;
+                default:
+                    throw typeMismatch(CellType.BOOLEAN, type, false);
+            }
+        }
+
+        public String getStringCellValue() {
+            final CellType type = getCellType();
+            switch (type) {
+                case BLANK:
+                    return "";
+                case STRING:
+                    return sheet.texts[index];
+                case FORMULA:
+                    if (cachedType() != CellType.STRING) {
+                        throw typeMismatch(CellType.STRING, cachedType(), true);
+                    }
+                    return sheet.texts[index];
+                default:
+                    throw typeMismatch(CellType.STRING, type, false);
+            }
+        }
+
+        public String getCellFormula() {
+            final CellType type = getCellType();
+            if (type != CellType.FORMULA) {
+                throw typeMismatch(CellType.FORMULA, type, false);
+            }
+            return sheet.formulas.get(index);
+        }
+
+        private static RuntimeException typeMismatch(CellType expected, CellType actual, boolean formula) {
+            return new IllegalStateException("Cannot get a " + expected + " value from a " + actual + " "
+                    + (formula ? "formula " : "") + "cell");
+        }
+
+        // Same as XSSFCell.toString
+        @Override
+        public String toString() {
+            switch (getCellType()) {
+                case BLANK:
+                    return "";
+                case NUMERIC:
+                    if ((bits() & DATE_FORMATTED) != 0) {
+                        final DateFormat sdf = new SimpleDateFormat("dd-MMM-yyyy", LocaleUtil.getUserLocale());
+                        sdf.setTimeZone(LocaleUtil.getUserTimeZone());
+                        return sdf.format(getDateCellValue());
+                    }
+                    return Double.toString(getNumericCellValue());
+                case STRING:
+                    return getStringCellValue();
+                case FORMULA:
+                    return getCellFormula();
+                case BOOLEAN:
+                    return getBooleanCellValue() ? "TRUE" : "FALSE";
+                case ERROR:
+                    return sheet.texts[index];
+                default:
+                    return "Unknown Cell Type: " + getCellType();
+            }
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Cell && ((Cell) obj).sheet == sheet && ((Cell) obj).index == index;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(sheet) * 31 + index;
+        }
+    }
+}
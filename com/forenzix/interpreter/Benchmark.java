@@ -0,0 +1,138 @@
+package com.forenzix.interpreter;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Benchmark
+ *
+ * Times the interpreter on workloads shaped like report tags, from the command
+ * line:
+ *
+ *     java -cp <classes> com.forenzix.interpreter.Benchmark [seconds per case]
+ *
+ * Every case is warmed up, then run over and over for a fixed time (1 second by
+ * default), and the mean time per operation is printed, with the bytes it
+ * allocated where the JVM can count them. This is a plain loop rather than a
+ * JMH harness, which the project does not depend on, so numbers are only
+ * comparable between runs on the same machine, and small differences are noise. Run it before and after changing the interpreter.
+ */
+public final class Benchmark {
+
+    // Numeric loops, like the ones that aggregate cells in templates
+    private static final String LOOP = String.join("\n",
+            "let i = 0",
+            "let total = 0",
+            "while i < 1000 {",
+            "  total = total + i * x",
+            "  i = i + 1",
+            "}",
+            "total");
+
+    // Branches and comparisons on every iteration
+    private static final String BRANCHES = String.join("\n",
+            "let i = 0",
+            "let odd = 0",
+            "while i < 1000 {",
+            "  if i % 2 == 1 and i > 10 {",
+            "    odd = odd + 1",
+            "  } else {",
+            "    odd = odd - 1",
+            "  }",
+            "  i = i + 1",
+            "}",
+            "odd");
+
+    // A typical one-line tag
+    private static final String TAG = "\"%,.2f\" % (x * 1.2 + y / 3)";
+
+    // Tags to tokenise: keywords, qualifiers, members, literals of every kind
+    private static final String[] TAGS = {
+            LOOP,
+            BRANCHES,
+            TAG,
+            "Sheet.A1 + Data.B2 * 1.2",
+            "if total > 1000 { \"high\" } else { \"low\" }",
+            "let date = 31/12/2023",
+            "'%,.2f' % (revenue - cost) # margin",
+            "not empty and x >= 10 or y != 3 xor false",
+            "define rate = 0.175; return rate * Invoices.Net",
+    };
+
+    private static long nanos = 1_000_000_000L;
+
+    // Counts the bytes each thread allocates, on HotSpot JVMs
+    private static final com.sun.management.ThreadMXBean THREADS = ManagementFactory
+            .getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+            && threads.isThreadAllocatedMemorySupported() ? threads : null;
+
+    // Keeps results alive, so that the JIT cannot drop the work that made them
+    static volatile Object sink;
+
+    private Benchmark() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0) {
+            nanos = (long) (Double.parseDouble(args[0]) * 1e9);
+        }
+
+        System.out.println("Backends (one run of a parsed program):");
+        for (Interpreter.Backend backend : Interpreter.Backend.values()) {
+            run("loop       " + backend, LOOP, backend);
+            run("branches   " + backend, BRANCHES, backend);
+            run("tag        " + backend, TAG, backend);
+        }
+
+        int tokens = 0;
+        for (String tag : TAGS) {
+            for (Tokeniser tokeniser = new Tokeniser(tag); tokeniser.nextToken() != Token.EOT;) {
+                tokens += 1;
+            }
+        }
+        System.out.println("Tokeniser (%d tags, %d tokens):".formatted(TAGS.length, tokens));
+        time("tokenise", () -> {
+            for (String tag : TAGS) {
+                final Tokeniser tokeniser = new Tokeniser(tag);
+                for (Token token = tokeniser.nextToken(); token != Token.EOT; token = tokeniser.nextToken()) {
+                    sink = token;
+                }
+            }
+        });
+    }
+
+    private static void run(String name, String source, Interpreter.Backend backend) {
+        final Program program = Program.compile(source);
+        final Map<String, Object> variables = new HashMap<>();
+        variables.put("x", 4.0);
+        variables.put("y", 7);
+        time(name, () -> sink = new Interpreter(program, variables).setBackend(backend).interpret());
+    }
+
+    // Runs an operation for the warm-up time, then for the measured time, and
+    // prints the mean time it took and the mean bytes it allocated.
+    static void time(String name, Runnable operation) {
+        for (long end = System.nanoTime() + nanos; System.nanoTime() < end;) {
+            operation.run();
+        }
+
+        long count = 0;
+        final long allocated = allocated();
+        final long start = System.nanoTime();
+        long now = start;
+        for (final long end = start + nanos; now < end; now = System.nanoTime()) {
+            operation.run();
+            count += 1;
+        }
+
+        final long bytes = allocated() - allocated;
+
+        System.out.println("  %-28s %12.0f ns/op %12s".formatted(name, (double) (now - start) / count,
+                THREADS == null ? "" : "%.0f B/op".formatted((double) bytes / count)));
+    }
+
+    private static long allocated() {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
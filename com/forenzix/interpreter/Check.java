@@ -0,0 +1,289 @@
+package com.forenzix.interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Check
+ *
+ * Runs every program of a corpus with each backend, and reports the programs
+ * whose results differ from the tree walking interpreter's. The result of a
+ * program is its value (or the error it raised) and the global variables it
+ * leaves, so a backend matches the interpreter only if it computes the same
+ * values, of the same types, and writes the same variables.
+ *
+ * The corpus covers every operator, on every kind of operand, and the scoping
+ * rules of the language. Programs the compiler does not support are run by the
+ * interpreter regardless of the backend, and are checked all the same.
+ *
+ * It also runs sequences of programs through a Sequence, concurrently, and
+ * checks that they give the same results as running the programs one after the
+ * other, which holds only if every program's reads and writes are complete.
+ *
+ * Run it after changing either backend, the Optimiser or the Resolver:
+ *
+ *     java -cp <classes> com.forenzix.interpreter.Check
+ *
+ * It exits with status 1 if any program or sequence differs.
+ */
+public final class Check {
+
+    // Programs run over the variables below. Sheet (and Data) are sheets, whose
+    // members read back as cells, or as the cell whose address a variable holds.
+    // Other objects (num) are functions of their member, which may be a member
+    // of a member (num.Data.c), like in reports.
+    private static final String[] CORPUS = {
+            "1 + 2 * 3",
+            "\"hello \" + \"world\"",
+            "\"£ \" + \"%,.2f\"",
+            "\"%.2f\" % 3.14159",
+            "\"%s-%s\" % \"a\"",
+            "\"%d\" % y",
+            "\"abc\" % 1",
+            "1000 * 12",
+            "2 ^ 3 ^ 2",
+            "-3 ^ 2",
+            "(1 + 2) * (3 - 4) / 5",
+            "10 % 3",
+            "y % 2",
+            "1 / 0",
+            "x / 0",
+            "1.5 + 1",
+            "1 == 1.0",
+            "-x + 3",
+            "-empty",
+            "-s",
+            "-\"a\"",
+            "not true",
+            "not x",
+            "!false",
+            "~5",
+            "~x",
+            "5 & 3",
+            "5 | 3",
+            "y & 1",
+            "y << 2",
+            "x == 4",
+            "x == empty",
+            "empty == empty",
+            "empty != 1",
+            "n == empty",
+            "s == \"B5\"",
+            "\"a\" == \"a\"",
+            "\"a\" != \"b\"",
+            "x > \"a\"",
+            "s + 1",
+            "s + x",
+            "y + x",
+            "x = \"str\"; x + 1",
+            "u = 1\nu = u + \"x\"\nu",
+            "true and false",
+            "false and z",
+            "true or z",
+            "false or z",
+            "1 and true",
+            "2 > 1 and 3 > 2",
+            "\"a\" + 31/12/2023",
+            "31/12/2023 + 0",
+            "31/12/2023 > 01/01/2023",
+            "31/12/2023 - 30/12/2023",
+            "let d = 31/12/2023\nd",
+            "12/05",
+            "12abc",
+            "1.2.3",
+            "let s2 = 'it\\'s'\ns2",
+            "\"a\\tb\\nc\"",
+            "# comment\n1 # trailing",
+            "\"a\"; \"b\"",
+            "1; x = 2; 3",
+            "z",
+            "z = 5; z * 2",
+            "let a = 1\na = a + 1\na",
+            "let a = 1\nlet a = 2",
+            "x = 1\nlet x = 2",
+            "let a = 1; a = a * 2; a = a * 2; a = a * 2; a",
+            "x = x + 1; y = y + 1; g = empty",
+            "a_b = 3; a_b",
+            "let i = 0\nlet total = 0\nwhile i < 100 {\n  total = total + i * x;\n  i = i + 1;\n}\ntotal",
+            "let i = 0\nwhile i < 5 {\n  let k = i * 2\n  i = i + 1\n}\nk",
+            "let i = 0\nwhile i < 3 { let j = 0; while j < 3 { j = j + 1; }; i = i + 1; }\ni",
+            "r = 0\ni = 0\nwhile i < 5 { if i % 2 == 0 { r = r + i\n } else { r = r - 1\n }\n i = i + 1\n }\nr",
+            "let i = 0; while i < 3 { let x = i; i = i + 1; }; x",
+            "i = 0\nr = 0\nwhile i < 4 { if i % 2 == 0 { let e = i; r = e; } else { let o = 1; if true { let e = o; }; }; i = i + 1; }\nr",
+            "let i = 0; while i < 3 { x = i; i = i + 1; }; x",
+            "while false { 1 }",
+            "while x { }",
+            "if x > 5 {\n  \"big\"\n} else if x > 3 {\n  \"mid\"\n} else {\n  \"small\"\n}",
+            "if x > 5 {\n  \"big\"\n}",
+            "5\nif false { 1 }",
+            "if 1 { 2 }",
+            "if true { w = 1; }\nw",
+            "if true { x = 1; }\nx",
+            "if true { let x = 1; }",
+            "let q = 1\nif true { let q = 2\n }\nq",
+            "{ let q = 1; q = q + 1; q }",
+            "{ let q = 1; }\nq",
+            "{ { let deep = 1; deep = deep + 1; t2 = deep; } }\nt2",
+            "{ t3 = 1; { t3 = t3 + 1; }; t3 }",
+            "{ let b = 1; }; { let b = 2; b }",
+            "if x == 4 { let inner = 5; if inner == 5 { inner = 6; gout = inner; } }\ngout",
+            "Sheet.A1",
+            "Sheet.s",
+            "Sheet.boom",
+            "Nope.A1",
+            "let m = 5\nSheet.m",
+            "{ let m = \"x\"; Sheet.m }",
+            "let i = 0\nwhile i < 2 { let m = i; k9 = Sheet.m; i = i + 1; }\nk9",
+            "1 +",
+            "(1",
+            "1 2",
+            "num.x",
+            "num.Data.s",
+            "num.Data.A1",
+            "num.Data.t",
+    };
+
+    private static final String[][] SEQUENCES = {
+            { "a = 1", "b = a + 1", "a = 5", "a + b" },
+            { "let t = 1", "t", "t = 2", "{ t = t + 1; }", "t" },
+            { "t = Sheet.s", "s = \"C7\"", "Sheet.s", "s = x", "Sheet.s" },
+            // Members of members read every segment as a variable
+            { "c = \"A3\"", "num.Data.c" },
+            { "c = \"A3\"", "Data = Sheet", "num.Data.c", "c = \"B4\"", "sum.Data.c" },
+    };
+
+    private Check() {
+    }
+
+    public static void main(String[] args) {
+        final List<String> failures = new ArrayList<>();
+        for (String source : CORPUS) {
+            final String expected = run(source, Interpreter.Backend.INTERPRETER);
+            for (Interpreter.Backend backend : Interpreter.Backend.values()) {
+                final String actual = run(source, backend);
+                if (!actual.equals(expected)) {
+                    failures.add(backend + " differs on " + source.replace("\n", "\\n") + "\n    expected "
+                            + expected + "\n    but got  " + actual);
+                }
+            }
+        }
+
+        for (String[] sequence : SEQUENCES) {
+            final String expected = runInOrder(sequence), actual = runSequence(sequence);
+            if (!actual.equals(expected)) {
+                failures.add("Sequence differs on " + String.join(" | ", sequence).replace("\n", "\\n")
+                        + "\n    expected " + expected + "\n    but got  " + actual);
+            }
+        }
+
+        failures.forEach(System.out::println);
+        System.out.println("%d programs, %d sequences, %d differences.".formatted(CORPUS.length, SEQUENCES.length,
+                failures.size()));
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Object> variables() {
+        final Map<String, Object> variables = new HashMap<>();
+        variables.put("x", 4.0);
+        variables.put("y", 7);
+        variables.put("n", null);
+        variables.put("s", "B5");
+        variables.put("str", "text");
+        variables.put("Sheet", "Sheet");
+        variables.put("Data", "Sheet");
+        variables.put("Data.t", "flat"); // Like a workbook name with a period
+        variables.put("num", "num");
+        variables.put("sum", "sum");
+        return variables;
+    }
+
+    private static Object member(Interpreter interpreter, Object object, String member) {
+        if ("Sheet".equals(object)) {
+            final Object value = interpreter.defined(member) ? interpreter.getVariable(member) : null;
+            return value instanceof String ? "cell " + value : "cell " + member;
+        } else if (!"num".equals(object) && !"sum".equals(object)) {
+            throw new IllegalArgumentException("Not a sheet or a function: " + object);
+        }
+
+        final int period = member.indexOf('.');
+        return object + "(" + (period < 0 || interpreter.defined(member) ? interpreter.getVariable(member)
+                : member(interpreter, interpreter.getVariable(member.substring(0, period)), member.substring(period + 1)))
+                + ")";
+    }
+
+    // The result of every program, and the variables they leave, running them one
+    // after the other over the same variables
+    private static String runInOrder(String[] sources) {
+        final Map<String, Object> variables = variables();
+        final List<String> results = new ArrayList<>();
+        for (String source : sources) {
+            final Interpreter interpreter = new Interpreter(Program.compile(source), variables);
+            interpreter.setMemberAccessCallback((object, member) -> member(interpreter, object, member));
+            try {
+                results.add(String.valueOf(interpreter.interpret()));
+            } catch (RuntimeException e) {
+                results.add("error " + e.getMessage());
+            }
+            variables.putAll(interpreter.getGlobalScopeWrites());
+        }
+        return results + " " + new TreeMap<>(variables);
+    }
+
+    // The same, running them through a Sequence
+    private static String runSequence(String[] sources) {
+        final List<Sequence.Step> steps = new ArrayList<>();
+        for (String source : sources) {
+            final Program program = Program.compile(source);
+            steps.add(new Sequence.Step() {
+                public Interpreter interpreter(Map<String, Object> variables) {
+                    return new Interpreter(program, variables);
+                }
+
+                public Set<String> reads() {
+                    return program.getReads();
+                }
+
+                public Set<String> writes() {
+                    return program.getWrites();
+                }
+            });
+        }
+
+        final Map<String, Object> variables = variables();
+        final List<String> results = new ArrayList<>();
+        for (Sequence.Outcome outcome : Sequence.run(steps, variables,
+                interpreter -> interpreter.setMemberAccessCallback((object, member) -> member(interpreter, object, member)),
+                ForkJoinPool.commonPool())) {
+            results.add(outcome.error == null ? String.valueOf(outcome.result) : "error " + outcome.error.getMessage());
+        }
+        return results + " " + new TreeMap<>(variables);
+    }
+
+    // The value of a program, with its type, and the global variables it leaves
+    private static String run(String source, Interpreter.Backend backend) {
+        final Interpreter interpreter;
+        try {
+            interpreter = new Interpreter(Program.compile(source), variables()).setBackend(backend);
+        } catch (RuntimeException e) {
+            return "parse error " + e.getMessage();
+        }
+
+        interpreter.setMemberAccessCallback((object, member) -> member(interpreter, object, member));
+
+        String result;
+        try {
+            final Object value = interpreter.interpret();
+            result = value + (value == null ? "" : " (" + value.getClass().getSimpleName() + ")");
+        } catch (RuntimeException e) {
+            result = "error " + e.getMessage();
+        }
+        return result + " " + new TreeMap<>(interpreter.getGlobalScopeVariables());
+    }
+}
@@ -0,0 +1,420 @@
+package com.forenzix.interpreter;
+
+import java.util.List;
+
+/*
+ * Compiler
+ *
+ * Turns a syntax tree into a tree of closures, one per node, each specialised
+ * for its operator and the kind of its operands. Running a compiled program calls
+ * straight from one closure into the next, without the double dispatch of the
+ * visitors and without allocating anything per node.
+ *
+ * Compiled programs behave exactly like interpreted ones, down to the order in
+ * which operands are evaluated and the errors that are raised. The closures hold
+ * no state of their own, so a compiled program can be shared like the Program it
+ * came from; all the state lives in the Interpreter that runs it.
+ *
+ * Programs with constructs the compiler does not handle are not compiled at all,
+ * and are left to the tree walking interpreter.
+ */
+final class Compiler {
+
+    @FunctionalInterface
+    interface Code {
+        Object run(Interpreter in);
+
+        // Reads the result as a number, as Interpreter.evaluate does, checking for
+        // the common case first.
+        default double runDouble(Interpreter in) {
+            final Object value = run(in);
+            return value instanceof Double ? (Double) value : in.evaluate(value);
+        }
+    }
+
+    /**
+     * Code that always produces a number. Numeric operands are passed from one
+     * closure to the next as primitive doubles, and only boxed when the result
+     * leaves arithmetic (when it is stored in a variable, for instance), so chains
+     * of arithmetic and comparisons allocate nothing.
+     */
+    @FunctionalInterface
+    interface Numeric extends Code {
+        @Override
+        double runDouble(Interpreter in);
+
+        @Override
+        default Object run(Interpreter in) {
+            return runDouble(in);
+        }
+    }
+
+    // Set once a construct the compiler does not handle is met. Compilation then
+    // carries on, but its result is thrown away.
+    private boolean unsupported;
+
+    private Compiler() {
+    }
+
+    /**
+     * Compiles the given tree.
+     *
+     * @param root the global scope of a program
+     * @return the compiled program, or null if the tree contains a construct that
+     *         cannot be compiled
+     */
+    static Code compile(NodeScope root) {
+        final Compiler compiler = new Compiler();
+        final Code code = compiler.scope(root, true);
+        return compiler.unsupported ? null : code;
+    }
+
+    /***************************************************************************
+     * Statements
+     **************************************************************************/
+    private Code scope(NodeScope scope, boolean global) {
+        final Code[] body = statements(scope.statements);
+
+        // The global scope is entered once, and is never exited, so that its
+        // variables outlive the run.
+        if (global) {
+            return in -> {
+                in.enterScope(scope);
+                Object output = null;
+                for (Code statement : body) {
+                    output = statement.run(in);
+                }
+                return output;
+            };
+        }
+
+        return in -> {
+            in.enterScope(scope);
+            Object output = null;
+            for (Code statement : body) {
+                output = statement.run(in);
+            }
+            in.exitScope();
+            return output;
+        };
+    }
+
+    private Code[] statements(List<NodeStatement> statements) {
+        final Code[] codes = new Code[statements.size()];
+        for (int i = 0; i < codes.length; i += 1) {
+            codes[i] = (Code) statements.get(i).host(statementCompiler);
+        }
+        return codes;
+    }
+
+    private final NodeStatement.Visitor statementCompiler = new NodeStatement.Visitor() {
+        public Code visit(NodeStatement.Assign assignment) {
+            final int line = assignment.lineNumber;
+            final NodeVariable variable = assignment.qualifier;
+            final Code expression = expression(assignment.expression);
+
+            return in -> {
+                in.lineNumber = line;
+                final Object value = expression.run(in);
+                in.assignVariable(variable, value);
+                return value;
+            };
+        }
+
+        public Code visit(NodeStatement.MemberAssign assignment) {
+            final int line = assignment.lineNumber;
+            final NodeVariable variable = assignment.qualifier;
+            final String member = assignment.member.name;
+            final Code expression = expression(assignment.expression);
+
+            return in -> {
+                in.lineNumber = line;
+                if (in.memberUpdateCallback == null) {
+                    throw in.error("Member updater callback not defined.");
+                }
+
+                final Object value = expression.run(in);
+                in.memberUpdateCallback.consume(in.getVariable(variable), member, value);
+                return null;
+            };
+        }
+
+        public Code visit(NodeStatement.Declare declaration) {
+            final int line = declaration.lineNumber;
+            final NodeVariable variable = declaration.qualifier;
+            final Code expression = expression(declaration.expression);
+
+            return in -> {
+                in.lineNumber = line;
+                if (in.defined(variable)) {
+                    throw in.error("Redefining an existing variable: " + variable.name);
+                }
+
+                final Object value = expression.run(in);
+                in.declareVariable(variable, value);
+                return value;
+            };
+        }
+
+        public Code visit(NodeStatement.Expression expression) {
+            final int line = expression.lineNumber;
+            final Code code = expression(expression.expression);
+
+            return in -> {
+                in.lineNumber = line;
+                return code.run(in);
+            };
+        }
+
+        public Code visit(NodeStatement.If ifStmt) {
+            final int line = ifStmt.lineNumber;
+            final Code condition = expression(ifStmt.expression);
+            final Code success = scope(ifStmt.success, false);
+
+            if (ifStmt.fail == null) {
+                return in -> {
+                    in.lineNumber = line;
+                    return (Boolean) condition.run(in) ? success.run(in) : null;
+                };
+            }
+
+            final Code fail = scope(ifStmt.fail, false);
+            return in -> {
+                in.lineNumber = line;
+                return (Boolean) condition.run(in) ? success.run(in) : fail.run(in);
+            };
+        }
+
+        public Code visit(NodeStatement.While whileStmt) {
+            final int line = whileStmt.lineNumber;
+            final Code condition = expression(whileStmt.expression);
+            final Code body = scope(whileStmt.scope, false);
+
+            return in -> {
+                in.lineNumber = line;
+                while ((Boolean) condition.run(in)) {
+                    body.run(in);
+                }
+                return null;
+            };
+        }
+
+        public Code visit(NodeStatement.Scope scope) {
+            final int line = scope.lineNumber;
+            final Code body = scope(scope.scope, false);
+
+            return in -> {
+                in.lineNumber = line;
+                return body.run(in);
+            };
+        }
+    };
+
+    /***************************************************************************
+     * Expressions
+     *
+     * Binary operations mirror Interpreter's visitor: the left operand is always
+     * evaluated first, the special cases for strings and nulls are checked in the
+     * same order, and the right operand is only evaluated once the left one has
+     * been converted, so that errors surface in the same place.
+     **************************************************************************/
+    private Code expression(NodeExpression expression) {
+        return expression.host(expressionCompiler);
+    }
+
+    private final NodeExpression.Visitor<Code> expressionCompiler = new NodeExpression.Visitor<Code>() {
+        @Override
+        public Code visit(NodeExpression.Binary node) {
+            return supported(binary(node.op, expression(node.lhs), expression(node.rhs)));
+        }
+
+        @Override
+        public Code visit(NodeExpression.Unary node) {
+            return supported(unary(node.op, expression(node.val)));
+        }
+
+        @Override
+        public Code visit(NodeExpression.Term node) {
+            return (Code) node.val.host(termCompiler);
+        }
+    };
+
+    private Code supported(Code code) {
+        unsupported |= code == null;
+        return code;
+    }
+
+    private static Code unary(UnaryOperator op, Code val) {
+        switch (op) {
+            case Not:
+                return in -> !(Boolean) val.run(in);
+            case Invert:
+                return in -> ~(Integer) val.run(in);
+            case Negate:
+                return (Numeric) in -> -val.runDouble(in);
+            default:
+                return null;
+        }
+    }
+
+    // Operations whose result is always a number are compiled as Numeric code.
+    // Addition and formatting are only numeric if their left operand is known
+    // to be a number, since otherwise it may turn out to be a string at run time.
+    // When it is a variable, as in i = i + 1, the number it holds is read without
+    // boxing, and a result that feeds further arithmetic or a comparison is not
+    // boxed either; only the value stored back into the variable is.
+    private static Code binary(BinaryOperator op, Code lhs, Code rhs) {
+        final boolean numeric = lhs instanceof Numeric;
+        switch (op) {
+            case Add:
+                if (numeric) {
+                    return (Numeric) in -> lhs.runDouble(in) + rhs.runDouble(in);
+                }
+                return new Code() {
+                    public Object run(Interpreter in) {
+                        final Object left = lhs.run(in);
+                        if (left instanceof Double) {
+                            return (Double) left + rhs.runDouble(in);
+                        }
+                        if (left instanceof String) {
+                            return ((String) left).concat(in.stringValue(rhs.run(in)));
+                        }
+                        return in.evaluate(left) + rhs.runDouble(in);
+                    }
+
+                    public double runDouble(Interpreter in) {
+                        final Object left = lhs.run(in);
+                        if (left instanceof Double) {
+                            return (Double) left + rhs.runDouble(in);
+                        }
+                        if (left instanceof String) {
+                            return in.evaluate(((String) left).concat(in.stringValue(rhs.run(in))));
+                        }
+                        return in.evaluate(left) + rhs.runDouble(in);
+                    }
+                };
+            case Modulo:
+                if (numeric) {
+                    return (Numeric) in -> lhs.runDouble(in) % rhs.runDouble(in);
+                }
+                return new Code() {
+                    public Object run(Interpreter in) {
+                        final Object left = lhs.run(in);
+                        if (left instanceof Double) {
+                            return (Double) left % rhs.runDouble(in);
+                        }
+                        if (left instanceof String) {
+                            return String.format((String) left, rhs.run(in));
+                        }
+                        return in.evaluate(left) % rhs.runDouble(in);
+                    }
+
+                    public double runDouble(Interpreter in) {
+                        final Object left = lhs.run(in);
+                        if (left instanceof Double) {
+                            return (Double) left % rhs.runDouble(in);
+                        }
+                        if (left instanceof String) {
+                            return in.evaluate(String.format((String) left, rhs.run(in)));
+                        }
+                        return in.evaluate(left) % rhs.runDouble(in);
+                    }
+                };
+            case Equal:
+                // Numeric code never produces null, so the null check can be skipped.
+                if (numeric && rhs instanceof Numeric) {
+                    return in -> lhs.runDouble(in) == rhs.runDouble(in);
+                }
+                return in -> {
+                    final Object left = lhs.run(in), right = rhs.run(in);
+                    if (left == null || right == null) {
+                        return left == right;
+                    }
+                    return in.evaluate(left) == in.evaluate(right);
+                };
+            case NotEqual:
+                if (numeric && rhs instanceof Numeric) {
+                    return in -> lhs.runDouble(in) != rhs.runDouble(in);
+                }
+                return in -> {
+                    final Object left = lhs.run(in), right = rhs.run(in);
+                    if (left == null || right == null) {
+                        return left != right;
+                    }
+                    return in.evaluate(left) != in.evaluate(right);
+                };
+            case Exponent:
+                return (Numeric) in -> Math.pow(lhs.runDouble(in), rhs.runDouble(in));
+            case Multiply:
+                return (Numeric) in -> lhs.runDouble(in) * rhs.runDouble(in);
+            case Divide:
+                return (Numeric) in -> lhs.runDouble(in) / rhs.runDouble(in);
+            case Subtract:
+                return (Numeric) in -> lhs.runDouble(in) - rhs.runDouble(in);
+            case Greater:
+                return in -> lhs.runDouble(in) > rhs.runDouble(in);
+            case GreaterEqual:
+                return in -> lhs.runDouble(in) >= rhs.runDouble(in);
+            case Less:
+                return in -> lhs.runDouble(in) < rhs.runDouble(in);
+            case LessEqual:
+                return in -> lhs.runDouble(in) <= rhs.runDouble(in);
+            case BitAnd:
+                return in -> (Integer) lhs.run(in) & (Integer) rhs.run(in);
+            case BitOr:
+                return in -> (Integer) lhs.run(in) | (Integer) rhs.run(in);
+            case BitXor:
+                return in -> (Integer) lhs.run(in) ^ (Integer) rhs.run(in);
+            case ShiftLeft:
+                return in -> (Integer) lhs.run(in) << (Integer) rhs.run(in);
+            case ShiftRight:
+                return in -> (Integer) lhs.run(in) >> (Integer) rhs.run(in);
+            case And:
+                return in -> (Boolean) lhs.run(in) && (Boolean) rhs.run(in);
+            case Or:
+                return in -> (Boolean) lhs.run(in) || (Boolean) rhs.run(in);
+            default:
+                return null;
+        }
+    }
+
+    /***************************************************************************
+     * Terms
+     **************************************************************************/
+    private final NodeTerm.Visitor termCompiler = new NodeTerm.Visitor() {
+        public Code visit(NodeTerm.Literal<?> literal) {
+            final Object value = literal.lit;
+            if (value instanceof Double || value instanceof Integer) {
+                final double number = ((Number) value).doubleValue();
+                return new Numeric() {
+                    public double runDouble(Interpreter in) {
+                        return number;
+                    }
+
+                    public Object run(Interpreter in) {
+                        return value;
+                    }
+                };
+            }
+            return in -> value;
+        }
+
+        public Code visit(NodeTerm.Variable variable) {
+            final NodeVariable var = variable.var;
+            return in -> in.getVariable(var);
+        }
+
+        public Code visit(NodeTerm.MemberAccess maccess) {
+            final NodeVariable object = maccess.object;
+            final String member = maccess.member.name;
+
+            return in -> {
+                if (in.memberAccessCallback == null) {
+                    throw in.error("Member access callback not defined.");
+                }
+
+                return in.memberAccessCallback.apply(in.getVariable(object), member);
+            };
+        }
+    };
+}
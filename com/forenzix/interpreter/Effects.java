@@ -0,0 +1,170 @@
+package com.forenzix.interpreter;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Effects
+ *
+ * The names of the variables a program may read and write, worked out from its
+ * syntax tree once when a Program is created. They tell which programs can be
+ * run independently of each other when several of them share global variables.
+ *
+ * The sets are conservative, in that a program may read or write fewer variables
+ * than listed, but never more:
+ * - Every name that appears in the program may be read. This includes the names
+ *   of members, since member access callbacks may look them up as variables,
+ *   every segment of a member of a member (num.Data.c reads Data, c and Data.c),
+ *   and the targets of assignments and declarations, whose existence is checked.
+ * - Every name that is assigned or declared may be written, even in a nested
+ *   scope, since assignments fall through to the global variables when the name
+ *   is not bound in the program.
+ *
+ * The string literals of the program are collected along the way, as are its
+ * member accesses, written as object.member (Home.A1). Member access callbacks
+ * may treat strings as names too (a cell address held in a variable, for
+ * instance).
+ */
+final class Effects {
+
+    final Set<String> reads = new HashSet<>(), writes = new HashSet<>(), strings = new HashSet<>(),
+            members = new HashSet<>();
+
+    private Effects() {
+    }
+
+    static Effects of(NodeScope root) {
+        final Effects effects = new Effects();
+        effects.scope(root);
+        return effects;
+    }
+
+    Set<String> reads() {
+        return Collections.unmodifiableSet(reads);
+    }
+
+    Set<String> writes() {
+        return Collections.unmodifiableSet(writes);
+    }
+
+    Set<String> strings() {
+        return Collections.unmodifiableSet(strings);
+    }
+
+    Set<String> members() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    private void scope(NodeScope scope) {
+        if (scope == null) {
+            return;
+        }
+        for (NodeStatement statement : scope.statements) {
+            statement.host(statementVisitor);
+        }
+    }
+
+    private void write(NodeVariable variable) {
+        reads.add(variable.name);
+        writes.add(variable.name);
+    }
+
+    private void expression(NodeExpression expression) {
+        expression.host(expressionVisitor);
+    }
+
+    private final NodeStatement.Visitor statementVisitor = new NodeStatement.Visitor() {
+        public Object visit(NodeStatement.Assign assignment) {
+            expression(assignment.expression);
+            write(assignment.qualifier);
+            return null;
+        }
+
+        public Object visit(NodeStatement.MemberAssign assignment) {
+            expression(assignment.expression);
+            reads.add(assignment.qualifier.name);
+            reads.add(assignment.member.name);
+            return null;
+        }
+
+        public Object visit(NodeStatement.Declare declaration) {
+            expression(declaration.expression);
+            write(declaration.qualifier);
+            return null;
+        }
+
+        public Object visit(NodeStatement.Expression expression) {
+            expression(expression.expression);
+            return null;
+        }
+
+        public Object visit(NodeStatement.If ifStmt) {
+            expression(ifStmt.expression);
+            scope(ifStmt.success);
+            scope(ifStmt.fail);
+            return null;
+        }
+
+        public Object visit(NodeStatement.While whileStmt) {
+            expression(whileStmt.expression);
+            scope(whileStmt.scope);
+            return null;
+        }
+
+        public Object visit(NodeStatement.Scope scope) {
+            scope(scope.scope);
+            return null;
+        }
+    };
+
+    private final NodeExpression.Visitor<Void> expressionVisitor = new NodeExpression.Visitor<Void>() {
+        public Void visit(NodeExpression.Binary node) {
+            expression(node.lhs);
+            expression(node.rhs);
+            return null;
+        }
+
+        public Void visit(NodeExpression.Unary node) {
+            expression(node.val);
+            return null;
+        }
+
+        public Void visit(NodeExpression.Term node) {
+            node.val.host(termVisitor);
+            return null;
+        }
+    };
+
+    private final NodeTerm.Visitor termVisitor = new NodeTerm.Visitor() {
+        public Object visit(NodeTerm.Literal<?> literal) {
+            if (literal.lit instanceof String) {
+                strings.add((String) literal.lit);
+            }
+            return null;
+        }
+
+        public Object visit(NodeTerm.Variable variable) {
+            reads.add(variable.var.name);
+            return null;
+        }
+
+        public Object visit(NodeTerm.MemberAccess maccess) {
+            reads.add(maccess.object.name);
+            reads.add(maccess.member.name);
+            members.add(maccess.object.name + "." + maccess.member.name);
+
+            // Members of members (num.Data.c) are looked up one segment at a
+            // time: the first segment (Data) is read as a variable, and the rest
+            // (c) is a member of it, which may in turn be read as a variable.
+            final String member = maccess.member.name;
+            int start = 0;
+            for (int period = member.indexOf('.'); period >= 0; period = member.indexOf('.', start)) {
+                reads.add(member.substring(start, period));
+                reads.add(member.substring(period + 1));
+                start = period + 1;
+            }
+            return null;
+        }
+    };
+}
@@ -0,0 +1,72 @@
+package com.forenzix.interpreter;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Global Scope
+ *
+ * The global variables of an Interpreter, layered over the variables it was
+ * created with. The initial variables are never copied nor modified; every write
+ * is recorded in a small overlay that shadows them instead. This makes creating
+ * an Interpreter cheap regardless of how many variables it is given, and lets
+ * the caller pick up exactly the variables a program has written.
+ */
+final class GlobalScope extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> base;
+    private final Map<String, Object> writes = new HashMap<>();
+    private boolean cleared = false;
+
+    GlobalScope(Map<String, Object> base) {
+        this.base = base;
+    }
+
+    /**
+     * Returns the variables written to this scope, and only those.
+     */
+    Map<String, Object> writes() {
+        return writes;
+    }
+
+    @Override
+    public Object get(Object key) {
+        final Object value = writes.get(key);
+        if (value != null || cleared || writes.containsKey(key)) {
+            return value;
+        }
+        return base.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return writes.containsKey(key) || (!cleared && base.containsKey(key));
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        final Object previous = get(key);
+        writes.put(key, value);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        writes.clear();
+        cleared = true;
+    }
+
+    // Iterating over the whole scope is rare, so a merged copy is good enough.
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        if (cleared) {
+            return writes.entrySet();
+        }
+
+        final Map<String, Object> merged = new HashMap<>(base);
+        merged.putAll(writes);
+        return merged.entrySet();
+    }
+}
@@ -3,13 +3,10 @@ package com.forenzix.interpreter;
 import java.math.BigDecimal;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.Optional;
-import java.util.function.Supplier;
 
 public class Interpreter {
 
@@ -25,76 +22,235 @@ public class Interpreter {
      * latter in tandem to minimise space and resources used.
      */
 
-    private final LinkedList<Map<String, Object>> scopes;
+    private final GlobalScope globals;
     private final Parser parser;
-    private int lineNumber = 0;
+    private Program program;
+    private Object[][] frames = new Object[0][];
+    private NodeScope[] active = new NodeScope[0];
+    private int depth = -1;
+    int lineNumber = 0;
     private Object lastResult;
-    private MemberAccessor<Object, String, Object> memberAccessCallback;
-    private MemberUpdater<Object, String, Object> memberUpdateCallback;
+    private Backend backend = defaultBackend;
+    MemberAccessor<Object, String, Object> memberAccessCallback;
+    MemberUpdater<Object, String, Object> memberUpdateCallback;
+
+    // Marks a slot whose variable has not been bound yet in the running scope.
+    private static final Object UNBOUND = new Object();
+
+    private static volatile Backend defaultBackend = Backend.CLOSURE;
 
     public Interpreter(String input) {
         this(input, new HashMap<>());
     }
 
     public Interpreter(String input, Map<String, Object> variables) {
-        this.parser = new Parser(input);
-        this.scopes = new LinkedList<>();
-        scopes.add(new HashMap<>(variables));
+        this(new Parser(input), null, variables);
+    }
+
+    /**
+     * Creates an interpreter that runs an already parsed program. Interpreters are
+     * cheap execution contexts; the same program can be run by many of them, one
+     * per set of variables, including from different threads.
+     */
+    public Interpreter(Program program, Map<String, Object> variables) {
+        this(null, program, variables);
+    }
+
+    private Interpreter(Parser parser, Program program, Map<String, Object> variables) {
+        this.parser = parser;
+        this.program = program;
+        this.globals = new GlobalScope(variables);
     }
 
     /**
      * Variable management.
      * 
      * Crucial for the execution of the interpreter when variables are involved.
+     * Variables that appear in the program are resolved ahead of time to slots in
+     * the frames of their scopes (see {@link Resolver}). The functions here look
+     * variables up by name instead, and are meant for callers outside the program,
+     * such as member access callbacks.
      */
     public Interpreter addVariable(String key, Object value) {
-        findVariable(key).orElse(scopes.getLast()).put(key, value);
+        for (int d = depth; d >= 0; d -= 1) {
+            final int slot = slotOf(d, key);
+            if (slot != -1 && frames[d][slot] != UNBOUND) {
+                frames[d][slot] = value;
+                return this;
+            }
+        }
+
+        final int slot = depth >= 0 && !globals.containsKey(key) ? slotOf(depth, key) : -1;
+        if (slot != -1) {
+            frames[depth][slot] = value;
+        } else {
+            globals.put(key, value);
+        }
         return this;
     }
 
+    /**
+     * Returns a view of all the global variables: the ones the interpreter was
+     * created with, as updated by the program.
+     */
     public Map<String, Object> getGlobalScopeVariables() {
-        return scopes.getFirst();
+        exportGlobalFrame();
+        return globals;
+    }
+
+    /**
+     * Returns only the global variables that have been written by the program.
+     * The variables the interpreter was created with are never modified, so
+     * applying these to them brings them up to date with the program.
+     */
+    public Map<String, Object> getGlobalScopeWrites() {
+        exportGlobalFrame();
+        return globals.writes();
     }
 
     public Object getVariable(String key) {
-        return findVariable(key).orElseThrow(() -> error("Variable " + key + " is undefined")).get(key);
+        for (int d = depth; d >= 0; d -= 1) {
+            final int slot = slotOf(d, key);
+            if (slot != -1 && frames[d][slot] != UNBOUND) {
+                return frames[d][slot];
+            }
+        }
+
+        final Object value = globals.get(key);
+        if (value == null && !globals.containsKey(key)) {
+            throw error("Variable " + key + " is undefined");
+        }
+        return value;
     }
 
     public boolean defined(String key) {
-        return findVariable(key).isPresent();
+        for (int d = depth; d >= 0; d -= 1) {
+            final int slot = slotOf(d, key);
+            if (slot != -1 && frames[d][slot] != UNBOUND) {
+                return true;
+            }
+        }
+        return globals.containsKey(key);
+    }
+
+    private int slotOf(int d, String key) {
+        final String[] names = active[d].names;
+        for (int slot = 0; slot < names.length; slot += 1) {
+            if (names[slot].equals(key)) {
+                return slot;
+            }
+        }
+        return -1;
     }
 
-    public Optional<Map<String, Object>> findVariable(String key) {
-        Iterator<Map<String, Object>> itr = scopes.descendingIterator();
-        while (itr.hasNext()) {
-            final Map<String, Object> scope = itr.next();
-            if (scope.containsKey(key)) {
-                return Optional.of(scope);
+    Object getVariable(NodeVariable variable) {
+        for (int i = 0; i < variable.depths.length; i += 1) {
+            final Object value = frames[variable.depths[i]][variable.slots[i]];
+            if (value != UNBOUND) {
+                return value;
             }
         }
 
-        return Optional.empty();
+        final Object value = globals.get(variable.name);
+        if (value == null && !globals.containsKey(variable.name)) {
+            throw error("Variable " + variable.name + " is undefined");
+        }
+        return value;
+    }
+
+    boolean defined(NodeVariable variable) {
+        for (int i = 0; i < variable.depths.length; i += 1) {
+            if (frames[variable.depths[i]][variable.slots[i]] != UNBOUND) {
+                return true;
+            }
+        }
+        return globals.containsKey(variable.name);
+    }
+
+    // Variables are assigned to the innermost scope they are bound in. If they
+    // are not bound anywhere, they become bound in the current scope.
+    void assignVariable(NodeVariable variable, Object value) {
+        for (int i = 0; i < variable.depths.length; i += 1) {
+            final Object[] frame = frames[variable.depths[i]];
+            if (frame[variable.slots[i]] != UNBOUND) {
+                frame[variable.slots[i]] = value;
+                return;
+            }
+        }
+
+        if (globals.containsKey(variable.name)) {
+            globals.put(variable.name, value);
+        } else {
+            declareVariable(variable, value);
+        }
+    }
+
+    // Assignments and declarations always have a slot in the scope they appear in,
+    // which is their innermost candidate.
+    void declareVariable(NodeVariable variable, Object value) {
+        frames[variable.depths[0]][variable.slots[0]] = value;
+    }
+
+    // Copy variables bound in the global scope of the program over to the global
+    // variables, so they are visible outside of the interpreter.
+    private void exportGlobalFrame() {
+        if (frames.length == 0 || frames[0] == null) {
+            return;
+        }
+
+        final Object[] frame = frames[0];
+        final String[] names = active[0].names;
+        for (int slot = 0; slot < names.length; slot += 1) {
+            if (frame[slot] != UNBOUND) {
+                globals.put(names[slot], frame[slot]);
+            }
+        }
     }
 
     public Object getLastResult() {
         return lastResult;
     }
 
-    private void enterScope() {
-        scopes.add(new HashMap<>());
+    // A scope entered again at the same depth, like the body of a loop on every
+    // iteration, reuses the frame left there rather than allocating one. Frames
+    // above the running depth are never read, so they can be left behind.
+    void enterScope(NodeScope scope) {
+        depth = scope.depth;
+        active[depth] = scope;
+        final Object[] frame = frames[depth];
+        if (frame != null && frame.length >= scope.names.length) {
+            Arrays.fill(frame, 0, scope.names.length, UNBOUND);
+        } else {
+            frames[depth] = newFrame(scope);
+        }
     }
 
-    private void exitScope() {
-        scopes.removeLast();
+    void exitScope() {
+        depth -= 1;
+    }
+
+    private static Object[] newFrame(NodeScope scope) {
+        final Object[] frame = new Object[scope.names.length];
+        Arrays.fill(frame, UNBOUND);
+        return frame;
     }
 
     public Interpreter clearVariables() {
-        scopes.clear();
+        globals.clear();
+        for (Object[] frame : frames) {
+            if (frame != null) {
+                Arrays.fill(frame, UNBOUND);
+            }
+        }
         return this;
     }
 
     public String getTree() {
-        return parser.getRoot() != null ? parser.getRoot().toString() : null;
+        return program != null ? program.getTree() : null;
+    }
+
+    public Program getProgram() {
+        return program;
     }
 
     public void setMemberAccessCallback(MemberAccessor<Object, String, Object> callback) {
@@ -105,20 +261,51 @@ public class Interpreter {
         memberUpdateCallback = callback;
     }
 
-    private RuntimeException error(String message) {
+    public Interpreter setBackend(Backend backend) {
+        this.backend = backend;
+        return this;
+    }
+
+    public Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Sets the backend used by interpreters created from now on.
+     */
+    public static void setDefaultBackend(Backend backend) {
+        defaultBackend = backend;
+    }
+
+    public static Backend getDefaultBackend() {
+        return defaultBackend;
+    }
+
+    RuntimeException error(String message) {
         return new RuntimeException(message + " (line: " + lineNumber + ")");
     }
 
     /***************************************************************************
      * Interpreter
      * 
-     * Traverses the Syntax Tree in in-order fashion. Calls the parser if no root
-     * node can be found.
+     * Traverses the Syntax Tree in in-order fashion. Calls the parser if no
+     * program has been provided.
      **************************************************************************/
     public Object interpret() {
-        if (parser.getRoot() == null)
-            parser.parse();
-        return lastResult = interpretGlobalScope(parser.getRoot());
+        if (program == null)
+            program = parser.program();
+
+        // Variables left over from a previous run remain visible as globals.
+        exportGlobalFrame();
+        frames = new Object[program.depth + 1][];
+        active = new NodeScope[program.depth + 1];
+        depth = -1;
+
+        // Programs the compiler cannot handle are always interpreted.
+        final Compiler.Code code = backend == Backend.CLOSURE ? program.compiled() : null;
+        if (code != null)
+            return lastResult = code.run(this);
+        return lastResult = interpretGlobalScope(program.root);
     }
 
     public Object interpretGlobalScope(NodeScope scope) {
@@ -131,8 +318,9 @@ public class Interpreter {
 
     public Object interpretScope(NodeScope scope, boolean global) {
 
-        if (!global)
-            enterScope();
+        // The global scope is entered once, and is never exited, so that its
+        // variables outlive the run.
+        enterScope(scope);
         Object output = null;
         for (NodeStatement statement : scope.statements) {
             output = interpretStatement(statement);
@@ -153,7 +341,7 @@ public class Interpreter {
             // }
 
             final Object value = interpretExpression(assignment.expression);
-            addVariable(assignment.qualifier.name, value);
+            assignVariable(assignment.qualifier, value);
             return value;
         }
 
@@ -164,18 +352,18 @@ public class Interpreter {
             }
 
             final Object value = interpretExpression(assignment.expression);
-            memberUpdateCallback.consume((getVariable(assignment.qualifier.name)), assignment.member.name, value);
+            memberUpdateCallback.consume((getVariable(assignment.qualifier)), assignment.member.name, value);
             return null;
         }
 
         public Object visit(NodeStatement.Declare declaration) {
 
-            if (defined(declaration.qualifier.name)) {
+            if (defined(declaration.qualifier)) {
                 throw error("Redefining an existing variable: " + declaration.qualifier.name);
             }
 
             final Object value = interpretExpression(declaration.expression);
-            addVariable(declaration.qualifier.name, value);
+            declareVariable(declaration.qualifier, value);
             return value;
         }
 
@@ -261,52 +449,56 @@ public class Interpreter {
                 right = null;
             }
 
-            final Supplier<Object> rGetter = right != null ? () -> right : () -> interpretExpression(node.rhs);
-
             switch (node.op) {
                 case Exponent:
-                    return Math.pow(evaluate(left), evaluate(rGetter.get()));
+                    return Math.pow(evaluate(left), evaluate(rhs(node, right)));
                 case Multiply:
-                    return evaluate(left) * evaluate(rGetter.get());
+                    return evaluate(left) * evaluate(rhs(node, right));
                 case Divide:
-                    return evaluate(left) / evaluate(rGetter.get());
+                    return evaluate(left) / evaluate(rhs(node, right));
                 case Modulo:
-                    return evaluate(left) % evaluate(rGetter.get());
+                    return evaluate(left) % evaluate(rhs(node, right));
                 case Add:
-                    return evaluate(left) + evaluate(rGetter.get());
+                    return evaluate(left) + evaluate(rhs(node, right));
                 case Subtract:
-                    return evaluate(left) - evaluate(rGetter.get());
+                    return evaluate(left) - evaluate(rhs(node, right));
                 case Greater:
-                    return evaluate(left) > evaluate(rGetter.get());
+                    return evaluate(left) > evaluate(rhs(node, right));
                 case GreaterEqual:
-                    return evaluate(left) >= evaluate(rGetter.get());
+                    return evaluate(left) >= evaluate(rhs(node, right));
                 case Less:
-                    return evaluate(left) < evaluate(rGetter.get());
+                    return evaluate(left) < evaluate(rhs(node, right));
                 case LessEqual:
-                    return evaluate(left) <= evaluate(rGetter.get());
+                    return evaluate(left) <= evaluate(rhs(node, right));
                 case NotEqual:
-                    return evaluate(left) != evaluate(rGetter.get());
+                    return evaluate(left) != evaluate(rhs(node, right));
                 case Equal:
-                    return evaluate(left) == evaluate(rGetter.get());
+                    return evaluate(left) == evaluate(rhs(node, right));
                 case BitAnd:
-                    return (Integer) left & (Integer) rGetter.get();
+                    return (Integer) left & (Integer) rhs(node, right);
                 case BitOr:
-                    return (Integer) left | (Integer) rGetter.get();
+                    return (Integer) left | (Integer) rhs(node, right);
                 case BitXor:
-                    return (Integer) left ^ (Integer) rGetter.get();
+                    return (Integer) left ^ (Integer) rhs(node, right);
                 case ShiftLeft:
-                    return (Integer) left << (Integer) rGetter.get();
+                    return (Integer) left << (Integer) rhs(node, right);
                 case ShiftRight:
-                    return (Integer) left >> (Integer) rGetter.get();
+                    return (Integer) left >> (Integer) rhs(node, right);
                 case And:
-                    return (Boolean) left && (Boolean) rGetter.get();
+                    return (Boolean) left && (Boolean) rhs(node, right);
                 case Or:
-                    return (Boolean) left || (Boolean) rGetter.get();
+                    return (Boolean) left || (Boolean) rhs(node, right);
                 default:
                     throw error("Unsupported operation: " + node.op);
             }
         }
 
+        // The right hand side is only interpreted once it is needed, unless it
+        // already has been for a null check.
+        private Object rhs(NodeExpression.Binary node, Object right) {
+            return right != null ? right : interpretExpression(node.rhs);
+        }
+
         @Override
         public Object visit(NodeExpression.Unary node) {
             switch (node.op) {
@@ -330,12 +522,13 @@ public class Interpreter {
         }
     };
 
-    private static final SimpleDateFormat format = new SimpleDateFormat("dd/MM/yyyy");
+    private static final ThreadLocal<SimpleDateFormat> format = ThreadLocal
+            .withInitial(() -> new SimpleDateFormat("dd/MM/yyyy"));
 
-    private String stringValue(Object o) {
+    String stringValue(Object o) {
 
         if (o instanceof Date) {
-            return format.format(o);
+            return format.get().format(o);
         }
 
         else if (o instanceof Double) {
@@ -374,7 +567,7 @@ public class Interpreter {
         }
 
         public Object visit(NodeTerm.Variable variable) {
-            return getVariable(variable.var.name);
+            return getVariable(variable.var);
         }
 
         public Object visit(NodeTerm.MemberAccess maccess) {
@@ -382,7 +575,7 @@ public class Interpreter {
                 throw error("Member access callback not defined.");
             }
 
-            return memberAccessCallback.apply(getVariable(maccess.object.name), maccess.member.name);
+            return memberAccessCallback.apply(getVariable(maccess.object), maccess.member.name);
         }
     };
 
@@ -403,7 +596,7 @@ public class Interpreter {
      * with the same has must be equivalent.
      * Read the Java Documentation on Strings for more info.
      */
-    private double evaluate(Object value) {
+    double evaluate(Object value) {
         if (value == null)
             return 0;
         else if (value instanceof Date)
@@ -422,6 +615,18 @@ public class Interpreter {
         throw error("Atomic expression required to be integer, or integer similar, but is not: " + value);
     }
 
+    /**
+     * The ways a program can be run. The tree walking interpreter visits the
+     * syntax tree node by node on every run. The closure backend compiles the tree
+     * once per Program (see {@link Compiler}) and runs the compiled form, which is
+     * considerably faster for programs with loops, and is the default. Both
+     * produce the same results; programs using constructs the compiler does not
+     * support are interpreted regardless of the backend.
+     */
+    public enum Backend {
+        INTERPRETER, CLOSURE
+    }
+
     @FunctionalInterface
     public interface MemberAccessor<S, M, R> {
         public R apply(S source, M member);
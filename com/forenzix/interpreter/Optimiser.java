@@ -0,0 +1,231 @@
+package com.forenzix.interpreter;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/*
+ * Optimiser
+ *
+ * A single pass over a freshly parsed syntax tree, run once when a Program is
+ * created, that does ahead of time whatever does not depend on the variables:
+ * - Operations on literals alone are folded into a literal ("£ " + "%,.2f",
+ *   1000 * 12, not true). So are 'and' and 'or' whose left operand is a literal
+ *   that decides the outcome on its own (false and x, true or x).
+ * - If statements whose condition is a literal are replaced by the branch that
+ *   would be taken, and while loops that would never run are removed.
+ * - Statements that are a bare literal are removed, unless they are the last of
+ *   their scope, whose value is the value of the scope.
+ *
+ * Folding is done by the interpreter itself, so folded values are exactly the
+ * ones that would have been computed when the program runs. Operations that fail
+ * are left alone so that they fail at run time, on the right line, and so are
+ * operations whose result depends on the locale (formatting a string, or
+ * appending a number or a date to one).
+ *
+ * The tree given is never modified; optimised parts of it are rebuilt, and the
+ * parts that could not be optimised are shared with the original tree.
+ */
+final class Optimiser {
+
+    // Interprets literal-only expressions. It has no variables and no callbacks,
+    // so anything that is not a literal would fail.
+    private final Interpreter folder = new Interpreter("");
+
+    private Optimiser() {
+    }
+
+    /**
+     * Optimises the given tree.
+     *
+     * @param root the global scope of a program
+     * @return the global scope of the optimised program
+     */
+    static NodeScope optimise(NodeScope root) {
+        return new Optimiser().optimiseScope(root);
+    }
+
+    private NodeScope optimiseScope(NodeScope scope) {
+        if (scope == null) {
+            return null;
+        }
+
+        final List<NodeStatement> statements = new ArrayList<>(scope.statements.size());
+        boolean changed = false;
+        for (int i = 0; i < scope.statements.size(); i += 1) {
+            final NodeStatement original = scope.statements.get(i);
+            final boolean last = i == scope.statements.size() - 1;
+
+            NodeStatement statement = (NodeStatement) original.host(statementOptimiser);
+
+            // Dead code and bare literals only matter as the value of the scope.
+            if (statement == null) {
+                statement = last ? withLine(new NodeStatement.Expression(constant(null)), original) : null;
+            } else if (!last && literal(statement) != NOT_LITERAL) {
+                statement = null;
+            }
+
+            changed |= statement != original;
+            if (statement != null) {
+                statements.add(statement);
+            }
+        }
+
+        return changed ? new NodeScope(statements) : scope;
+    }
+
+    private static <T extends NodeStatement> T withLine(T statement, NodeStatement original) {
+        statement.lineNumber = original.lineNumber;
+        return statement;
+    }
+
+    /***************************************************************************
+     * Statements
+     *
+     * Each visit returns the statement to replace the visited one with, which is
+     * the visited statement itself if nothing changed, or null if it should be
+     * removed.
+     **************************************************************************/
+    private final NodeStatement.Visitor statementOptimiser = new NodeStatement.Visitor() {
+        public NodeStatement visit(NodeStatement.Assign assignment) {
+            final NodeExpression expression = optimiseExpression(assignment.expression);
+            return expression == assignment.expression ? assignment
+                    : withLine(new NodeStatement.Assign(assignment.qualifier, expression), assignment);
+        }
+
+        public NodeStatement visit(NodeStatement.MemberAssign assignment) {
+            final NodeExpression expression = optimiseExpression(assignment.expression);
+            return expression == assignment.expression ? assignment
+                    : withLine(new NodeStatement.MemberAssign(assignment.qualifier, assignment.member, expression), assignment);
+        }
+
+        public NodeStatement visit(NodeStatement.Declare declaration) {
+            final NodeExpression expression = optimiseExpression(declaration.expression);
+            return expression == declaration.expression ? declaration
+                    : withLine(new NodeStatement.Declare(declaration.qualifier, expression), declaration);
+        }
+
+        public NodeStatement visit(NodeStatement.Expression expression) {
+            final NodeExpression optimised = optimiseExpression(expression.expression);
+            return optimised == expression.expression ? expression
+                    : withLine(new NodeStatement.Expression(optimised), expression);
+        }
+
+        public NodeStatement visit(NodeStatement.If ifStmt) {
+            final NodeExpression condition = optimiseExpression(ifStmt.expression);
+            final NodeScope success = optimiseScope(ifStmt.success);
+            final NodeScope fail = optimiseScope(ifStmt.fail);
+
+            // The branch taken still runs in a scope of its own.
+            final Object value = literal(condition);
+            if (value instanceof Boolean) {
+                final NodeScope taken = (Boolean) value ? success : fail;
+                return taken == null ? null : withLine(new NodeStatement.Scope(taken), ifStmt);
+            }
+
+            return condition == ifStmt.expression && success == ifStmt.success && fail == ifStmt.fail ? ifStmt
+                    : withLine(new NodeStatement.If(condition, success, fail), ifStmt);
+        }
+
+        public NodeStatement visit(NodeStatement.While whileStmt) {
+            final NodeExpression condition = optimiseExpression(whileStmt.expression);
+            if (Boolean.FALSE.equals(literal(condition))) {
+                return null;
+            }
+
+            final NodeScope scope = optimiseScope(whileStmt.scope);
+            return condition == whileStmt.expression && scope == whileStmt.scope ? whileStmt
+                    : withLine(new NodeStatement.While(condition, scope), whileStmt);
+        }
+
+        public NodeStatement visit(NodeStatement.Scope scope) {
+            final NodeScope optimised = optimiseScope(scope.scope);
+            return optimised == scope.scope ? scope : withLine(new NodeStatement.Scope(optimised), scope);
+        }
+    };
+
+    /***************************************************************************
+     * Expressions
+     **************************************************************************/
+    private NodeExpression optimiseExpression(NodeExpression expression) {
+        return expression.host(expressionOptimiser);
+    }
+
+    private final NodeExpression.Visitor<NodeExpression> expressionOptimiser = new NodeExpression.Visitor<NodeExpression>() {
+        public NodeExpression visit(NodeExpression.Binary node) {
+            final NodeExpression lhs = optimiseExpression(node.lhs);
+            final NodeExpression rhs = optimiseExpression(node.rhs);
+            final NodeExpression optimised = lhs == node.lhs && rhs == node.rhs ? node
+                    : new NodeExpression.Binary(node.op, lhs, rhs);
+
+            final Object left = literal(lhs), right = literal(rhs);
+            if (left == NOT_LITERAL) {
+                return optimised;
+            }
+
+            // The right operand is never evaluated, so it need not be a literal.
+            if ((node.op == BinaryOperator.And && Boolean.FALSE.equals(left))
+                    || (node.op == BinaryOperator.Or && Boolean.TRUE.equals(left))) {
+                return constant(left);
+            }
+
+            if (right == NOT_LITERAL || localised(node.op, left, right)) {
+                return optimised;
+            }
+            return fold(optimised);
+        }
+
+        public NodeExpression visit(NodeExpression.Unary node) {
+            final NodeExpression val = optimiseExpression(node.val);
+            final NodeExpression optimised = val == node.val ? node : new NodeExpression.Unary(node.op, val);
+            return literal(val) == NOT_LITERAL ? optimised : fold(optimised);
+        }
+
+        public NodeExpression visit(NodeExpression.Term node) {
+            return node;
+        }
+    };
+
+    // Whether the result of an operation on literals depends on the locale.
+    private static boolean localised(BinaryOperator op, Object left, Object right) {
+        if (!(left instanceof String)) {
+            return false;
+        }
+        return op == BinaryOperator.Modulo
+                || (op == BinaryOperator.Add && (right instanceof Double || right instanceof Date));
+    }
+
+    private NodeExpression fold(NodeExpression expression) {
+        final Object value;
+        try {
+            value = expression.host(folder.nodeExpressionVisitor);
+        } catch (RuntimeException e) {
+            return expression;
+        }
+        return constant(value);
+    }
+
+    /***************************************************************************
+     * Literals
+     **************************************************************************/
+    private static final Object NOT_LITERAL = new Object();
+
+    private static NodeExpression constant(Object value) {
+        return new NodeExpression.Term(new NodeTerm.Literal<Object>(value));
+    }
+
+    // Returns the value of a literal expression or statement, or NOT_LITERAL.
+    private static Object literal(NodeExpression expression) {
+        if (expression instanceof NodeExpression.Term
+                && ((NodeExpression.Term) expression).val instanceof NodeTerm.Literal) {
+            return ((NodeTerm.Literal<?>) ((NodeExpression.Term) expression).val).lit;
+        }
+        return NOT_LITERAL;
+    }
+
+    private static Object literal(NodeStatement statement) {
+        return statement instanceof NodeStatement.Expression
+                ? literal(((NodeStatement.Expression) statement).expression)
+                : NOT_LITERAL;
+    }
+}
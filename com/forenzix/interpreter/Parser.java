@@ -3,6 +3,7 @@ package com.forenzix.interpreter;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
@@ -11,19 +12,25 @@ import java.util.stream.Collectors;
 
 public class Parser {
 
-    private final List<Token> cache;
     private final Tokeniser tokeniser;
+    private Token[] cache = new Token[4]; // Ring buffer, its length is a power of two
+    private int head = 0, cached = 0;
+    private final String source;
     private int lineNumber = 1;
-    private NodeScope root = null;
+    private volatile NodeScope root = null;
 
     public Parser(Tokeniser tokeniser) {
-        this.tokeniser = tokeniser;
-        this.cache = new LinkedList<>();
+        this(tokeniser, tokeniser.toString());
     }
 
     public Parser(String input) {
         // The input expression should always end in an End of File token (\0 character)
-        this(new Tokeniser(input + Token.EOF));
+        this(new Tokeniser(input + Token.EOF), input);
+    }
+
+    private Parser(Tokeniser tokeniser, String source) {
+        this.tokeniser = tokeniser;
+        this.source = source;
     }
 
     private RuntimeException error(String message) {
@@ -33,15 +40,29 @@ public class Parser {
     /***************************************************************************
      * Parser
      **************************************************************************/
-    public NodeScope parse() {
+    public synchronized NodeScope parse() {
         tokeniser.reset();
+        Arrays.fill(cache, null);
+        head = 0;
+        cached = 0;
         lineNumber = 1;
-        root = parseProgram();
+        final NodeScope program = parseProgram();
 
         if (peek() != Token.EOT) {
             throw error("Unexpected token at End of Expression: " + peek().value);
         }
-        return root;
+
+        // The root is only published once the whole program has been parsed, so a
+        // parser shared between several interpreters never exposes a partial tree.
+        return root = program;
+    }
+
+    /**
+     * Parses the input and packages the resulting syntax tree as a reusable
+     * {@link Program}.
+     */
+    public Program program() {
+        return new Program(source, root != null ? root : parse());
     }
 
     private <T> T tryParse(Supplier<T> supplier, String error) {
@@ -274,7 +295,14 @@ public class Parser {
                     List<String> memberBuilder = new LinkedList<>();
                     while (tryConsume(Token.Period)) {
                         final NodeVariable member = tryParse(() -> parseVariable(), "Expected member name");
-                        memberBuilder.add(member.name);
+
+                        // A member may be a range of cells (Home.B2:B500)
+                        if (peek() == Token.Colon && peek(1).isAny(TokenType.Qualifier)) {
+                            consume();
+                            memberBuilder.add(member.name + ":" + consume().value);
+                        } else {
+                            memberBuilder.add(member.name);
+                        }
                     }
                     atom = new NodeTerm.MemberAccess(var, new NodeVariable(String.join(".", memberBuilder)));
                 }
@@ -322,7 +350,8 @@ public class Parser {
      * empty keyword, which represents null
      * or 0.
      */
-    private static final SimpleDateFormat format = new SimpleDateFormat("dd/MM/yyyy");
+    private static final ThreadLocal<SimpleDateFormat> format = ThreadLocal
+            .withInitial(() -> new SimpleDateFormat("dd/MM/yyyy"));
 
     private NodeTerm.Literal<?> parseLiteral() {
 
@@ -344,7 +373,7 @@ public class Parser {
         } else if (peek().isAny(TokenType.DateLiteral)) {
             final String dateToken = consume().value;
             try {
-                return new NodeTerm.Literal<Date>(format.parse(dateToken));
+                return new NodeTerm.Literal<Date>(format.get().parse(dateToken));
             } catch (ParseException e) {
                 throw error("Date format error: " + dateToken);
             }
@@ -362,28 +391,49 @@ public class Parser {
      * after an incorrect syntax need not be generated and overall reduce compute
      * time.
      * 
-     * The Tokeniser keeps a cache of tokens for use and although it usually by
-     * default keeps one token in cache, it can generate more tokens on demand.
-     * These extra tokens would not need to be generated again on future
-     * invocations of peek() or consume().
+     * The Parser keeps a cache of tokens for lookahead, and although it usually
+     * keeps one token in cache, it can generate more tokens on demand. These
+     * extra tokens would not need to be generated again on future invocations of
+     * peek() or consume(). The cache is a ring buffer, so peeking and consuming
+     * take constant time regardless of how far ahead the Parser has looked.
      **************************************************************************/
     private Token peek() {
         return peek(0);
     }
 
     private Token consume() {
-        final Token consumable = cache.size() > 0 ? cache.remove(0) : tokeniser.nextToken();
-        lineNumber += consumable.value.length() - consumable.value.replace("\n", "").length();
-        // lineNumber += consumable.value.chars().filter(i -> i == '\n').count(); //
-        // Possible improvement
+        final Token consumable;
+        if (cached > 0) {
+            consumable = cache[head];
+            cache[head] = null;
+            head = (head + 1) & (cache.length - 1);
+            cached -= 1;
+        } else {
+            consumable = tokeniser.nextToken();
+        }
+
+        lineNumber += consumable.newlines;
         return consumable;
     }
 
     private Token peek(int offset) {
-        while (cache.size() <= offset) {
-            cache.add(tokeniser.nextToken());
+        while (cached <= offset) {
+            if (cached == cache.length) {
+                grow();
+            }
+            cache[(head + cached) & (cache.length - 1)] = tokeniser.nextToken();
+            cached += 1;
         }
-        return cache.get(offset);
+        return cache[(head + offset) & (cache.length - 1)];
+    }
+
+    private void grow() {
+        final Token[] grown = new Token[cache.length * 2];
+        for (int i = 0; i < cached; i += 1) {
+            grown[i] = cache[(head + i) & (cache.length - 1)];
+        }
+        cache = grown;
+        head = 0;
     }
 
     private boolean tryConsume(Token token) {
@@ -407,6 +457,11 @@ public class Parser {
 class NodeScope {
     public final List<NodeStatement> statements;
 
+    // Filled in by the Resolver: the nesting depth of this scope, and the names of
+    // the variables that can be bound directly in it, indexed by slot.
+    int depth = 0;
+    String[] names = Resolver.NO_NAMES;
+
     NodeScope(List<NodeStatement> statements) {
         this.statements = List.copyOf(statements);
     }
@@ -767,6 +822,10 @@ interface NodeTerm {
 class NodeVariable {
     public final String name;
 
+    // Filled in by the Resolver: the (depth, slot) pairs of the enclosing scopes
+    // that may hold this variable, innermost first.
+    int[] depths = Resolver.NO_SLOTS, slots = Resolver.NO_SLOTS;
+
     NodeVariable(String name) {
         this.name = name;
     }
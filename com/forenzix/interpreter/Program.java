@@ -0,0 +1,110 @@
+package com.forenzix.interpreter;
+
+import java.util.Set;
+
+/*
+ * Program
+ *
+ * A Program is the parsed form of a piece of source code, ready to be run by an
+ * Interpreter. Parsing is the expensive part of running a program, so a Program
+ * is meant to be produced once and then interpreted as many times as needed.
+ *
+ * Programs are optimised when they are created (see {@link Optimiser}), so that
+ * the work that does not depend on the variables is done once and for all.
+ *
+ * Programs are immutable. A single Program can be interpreted by any number of
+ * Interpreters at the same time, each one holding its own variables.
+ */
+public final class Program {
+
+    private final String source;
+    final NodeScope root;
+    final int depth;
+    private final int lines;
+    private final Effects effects;
+
+    // Compiled lazily, since not every program is run by the closure backend.
+    // Compiling twice on a race is harmless as the result is immutable.
+    private volatile Compiler.Code compiled;
+    private volatile boolean compilable = true;
+
+    Program(String source, NodeScope root) {
+        this.source = source;
+        this.root = Optimiser.optimise(root);
+        this.depth = Resolver.resolve(this.root);
+        this.effects = Effects.of(this.root);
+        this.lines = (int) source.chars().filter(c -> c == '\n').count() + 1;
+    }
+
+    /**
+     * Parses the given source code into a Program.
+     *
+     * @param source program source code
+     * @return the parsed program
+     * @throws RuntimeException if the source code cannot be parsed
+     */
+    public static Program compile(String source) {
+        return new Parser(source).program();
+    }
+
+    /**
+     * Returns the compiled form of this program, or null if it contains constructs
+     * that only the tree walking interpreter supports.
+     */
+    Compiler.Code compiled() {
+        Compiler.Code code = compiled;
+        if (code == null && compilable) {
+            compiled = code = Compiler.compile(root);
+            compilable = code != null;
+        }
+        return code;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int getLineCount() {
+        return lines;
+    }
+
+    /**
+     * Returns the names of the variables this program may read, including the
+     * ones it may write. See {@link Effects}.
+     */
+    public Set<String> getReads() {
+        return effects.reads();
+    }
+
+    /**
+     * Returns the names of the variables this program may write. See
+     * {@link Effects}.
+     */
+    public Set<String> getWrites() {
+        return effects.writes();
+    }
+
+    /**
+     * Returns the string literals of this program, after constant folding.
+     */
+    public Set<String> getStringLiterals() {
+        return effects.strings();
+    }
+
+    /**
+     * Returns the member accesses of this program, written as object.member
+     * (Home.A1). Members of members are written in full (sum.Home.B2:B500).
+     */
+    public Set<String> getMemberAccesses() {
+        return effects.members();
+    }
+
+    public String getTree() {
+        return root.toString();
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
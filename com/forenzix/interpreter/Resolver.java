@@ -0,0 +1,178 @@
+package com.forenzix.interpreter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Resolver
+ *
+ * A single pass over a syntax tree, run once when a Program is created, that
+ * works out where every variable lives. Each scope is given a frame of slots, one
+ * for every name that is declared or assigned directly within it, and every
+ * variable in the tree is given the list of (depth, slot) pairs it may refer to.
+ * At run time, reading or writing a variable is then a matter of indexing into
+ * the frames of the enclosing scopes rather than probing a chain of maps.
+ *
+ * Since scopes only come into existence when they are run, a slot may or may not
+ * be bound at the time a variable is used. The interpreter checks the candidate
+ * slots innermost first, and only falls back to the global variables (the ones
+ * provided when the Interpreter was created) if none of them are bound. This
+ * matches the behaviour of looking up the name in each scope in turn.
+ */
+final class Resolver {
+
+    static final String[] NO_NAMES = new String[0];
+    static final int[] NO_SLOTS = new int[0];
+
+    // Bindings of the scopes enclosing the node being resolved, outermost first.
+    private final List<Map<String, Integer>> frames = new ArrayList<>();
+    private int maxDepth = 0;
+
+    private Resolver() {
+    }
+
+    /**
+     * Resolves all the variables in the given tree.
+     *
+     * @param root the global scope of a program
+     * @return the deepest scope nesting found in the tree
+     */
+    static int resolve(NodeScope root) {
+        final Resolver resolver = new Resolver();
+        resolver.resolveScope(root, 0);
+        return resolver.maxDepth;
+    }
+
+    private void resolveScope(NodeScope scope, int depth) {
+        maxDepth = Math.max(maxDepth, depth);
+
+        // Every name declared or assigned directly in this scope gets a slot.
+        final Map<String, Integer> names = new LinkedHashMap<>();
+        for (NodeStatement statement : scope.statements) {
+            final NodeVariable target;
+            if (statement instanceof NodeStatement.Declare) {
+                target = ((NodeStatement.Declare) statement).qualifier;
+            } else if (statement instanceof NodeStatement.Assign) {
+                target = ((NodeStatement.Assign) statement).qualifier;
+            } else {
+                continue;
+            }
+            names.putIfAbsent(target.name, names.size());
+        }
+
+        scope.depth = depth;
+        scope.names = names.isEmpty() ? NO_NAMES : names.keySet().toArray(new String[names.size()]);
+
+        frames.add(names);
+        for (NodeStatement statement : scope.statements) {
+            statement.host(statementVisitor);
+        }
+        frames.remove(frames.size() - 1);
+    }
+
+    private void resolveVariable(NodeVariable variable) {
+        final List<int[]> candidates = new ArrayList<>();
+        for (int depth = frames.size() - 1; depth >= 0; depth -= 1) {
+            final Integer slot = frames.get(depth).get(variable.name);
+            if (slot != null) {
+                candidates.add(new int[] { depth, slot });
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        variable.depths = new int[candidates.size()];
+        variable.slots = new int[candidates.size()];
+        for (int i = 0; i < candidates.size(); i += 1) {
+            variable.depths[i] = candidates.get(i)[0];
+            variable.slots[i] = candidates.get(i)[1];
+        }
+    }
+
+    private void resolveExpression(NodeExpression expression) {
+        expression.host(expressionVisitor);
+    }
+
+    private final NodeStatement.Visitor statementVisitor = new NodeStatement.Visitor() {
+        public Object visit(NodeStatement.Assign assignment) {
+            resolveExpression(assignment.expression);
+            resolveVariable(assignment.qualifier);
+            return null;
+        }
+
+        public Object visit(NodeStatement.MemberAssign assignment) {
+            resolveExpression(assignment.expression);
+            resolveVariable(assignment.qualifier);
+            return null;
+        }
+
+        public Object visit(NodeStatement.Declare declaration) {
+            resolveExpression(declaration.expression);
+            resolveVariable(declaration.qualifier);
+            return null;
+        }
+
+        public Object visit(NodeStatement.Expression expression) {
+            resolveExpression(expression.expression);
+            return null;
+        }
+
+        public Object visit(NodeStatement.If ifStmt) {
+            resolveExpression(ifStmt.expression);
+            resolveScope(ifStmt.success, frames.size());
+            if (ifStmt.fail != null) {
+                resolveScope(ifStmt.fail, frames.size());
+            }
+            return null;
+        }
+
+        public Object visit(NodeStatement.While whileStmt) {
+            resolveExpression(whileStmt.expression);
+            resolveScope(whileStmt.scope, frames.size());
+            return null;
+        }
+
+        public Object visit(NodeStatement.Scope scope) {
+            resolveScope(scope.scope, frames.size());
+            return null;
+        }
+    };
+
+    private final NodeExpression.Visitor<Void> expressionVisitor = new NodeExpression.Visitor<Void>() {
+        public Void visit(NodeExpression.Binary node) {
+            resolveExpression(node.lhs);
+            resolveExpression(node.rhs);
+            return null;
+        }
+
+        public Void visit(NodeExpression.Unary node) {
+            resolveExpression(node.val);
+            return null;
+        }
+
+        public Void visit(NodeExpression.Term node) {
+            node.val.host(termVisitor);
+            return null;
+        }
+    };
+
+    private final NodeTerm.Visitor termVisitor = new NodeTerm.Visitor() {
+        public Object visit(NodeTerm.Literal<?> literal) {
+            return null;
+        }
+
+        public Object visit(NodeTerm.Variable variable) {
+            resolveVariable(variable.var);
+            return null;
+        }
+
+        public Object visit(NodeTerm.MemberAccess maccess) {
+            resolveVariable(maccess.object);
+            return null;
+        }
+    };
+}
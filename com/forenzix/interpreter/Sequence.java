@@ -0,0 +1,206 @@
+package com.forenzix.interpreter;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/*
+ * Sequence
+ *
+ * Runs a sequence of programs that share their global variables: every program
+ * sees the variables written by the programs before it. The result is the same
+ * as running the programs one after the other, each one over the variables left
+ * by the previous one, but programs that do not depend on each other are run
+ * concurrently.
+ *
+ * A program depends on every earlier program that may write a variable it may
+ * read (see Program.getReads and Program.getWrites). Programs start as soon as
+ * all the programs they depend on are done. Rather than sharing a single map of
+ * variables, each program looks up every variable it reads from the last program
+ * before it that actually wrote it, or from the initial variables if none did.
+ * The variables written by all the programs are applied to the initial variables
+ * in order once every program is done.
+ */
+public final class Sequence {
+
+    /**
+     * A program of a sequence, along with the variables it may read and write.
+     */
+    public interface Step {
+        /**
+         * Creates an interpreter for the program over the given variables.
+         */
+        Interpreter interpreter(Map<String, Object> variables);
+
+        /**
+         * Returns the names of the variables the program may read. This must
+         * include every name it may write.
+         */
+        Set<String> reads();
+
+        /**
+         * Returns the names of the variables the program may write.
+         */
+        Set<String> writes();
+    }
+
+    /**
+     * The outcome of running a step: either its result, or the error it raised.
+     * Outcomes are immutable.
+     */
+    public static final class Outcome {
+        public final Object result;
+        public final Exception error;
+        private final Map<String, Object> writes;
+
+        private Outcome(Object result, Exception error, Map<String, Object> writes) {
+            this.result = result;
+            this.error = error;
+            this.writes = writes;
+        }
+    }
+
+    private Sequence() {
+    }
+
+    /**
+     * Runs the given steps as a sequence, over the given variables. Once all the
+     * steps are done, the variables are updated with every variable the steps
+     * wrote, exactly as they would have been by running the steps one after the
+     * other.
+     *
+     * @param steps     steps to run, in order
+     * @param variables initial global variables, not to be modified until this
+     *                  returns
+     * @param setup     prepares every interpreter before it is run, for example by
+     *                  setting its callbacks
+     * @param executor  runs the steps, for example a ForkJoinPool. Steps run one
+     *                  after the other, on the calling thread, with
+     *                  {@code Runnable::run}.
+     * @return the outcome of each step, in order
+     */
+    public static List<Outcome> run(List<? extends Step> steps, Map<String, Object> variables,
+            Consumer<Interpreter> setup, Executor executor) {
+
+        final int n = steps.size();
+        final Outcome[] outcomes = new Outcome[n];
+        final List<CompletableFuture<Void>> done = new ArrayList<>(n);
+
+        // The steps that may write each variable, in order
+        final Map<String, List<Integer>> writers = new HashMap<>();
+
+        for (int j = 0; j < n; j += 1) {
+            final Step step = steps.get(j);
+            final int index = j;
+
+            // Everything this step may read comes from these writers
+            final Map<String, int[]> sources = new HashMap<>();
+            final Set<CompletableFuture<Void>> dependencies = new LinkedHashSet<>();
+            for (String name : step.reads()) {
+                final List<Integer> earlier = writers.get(name);
+                if (earlier == null) {
+                    continue;
+                }
+
+                final int[] array = new int[earlier.size()];
+                for (int i = 0; i < array.length; i += 1) {
+                    array[i] = earlier.get(i);
+                    dependencies.add(done.get(array[i]));
+                }
+                sources.put(name, array);
+            }
+
+            for (String name : step.writes()) {
+                writers.computeIfAbsent(name, k -> new ArrayList<>()).add(j);
+            }
+
+            final Map<String, Object> view = new View(variables, sources, outcomes);
+            final CompletableFuture<Void> ready = CompletableFuture
+                    .allOf(dependencies.toArray(new CompletableFuture<?>[dependencies.size()]));
+            done.add(ready.thenRunAsync(() -> outcomes[index] = run(step, view, setup), executor));
+        }
+
+        CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[n])).join();
+
+        for (Outcome outcome : outcomes) {
+            variables.putAll(outcome.writes);
+        }
+        return List.of(outcomes);
+    }
+
+    private static Outcome run(Step step, Map<String, Object> variables, Consumer<Interpreter> setup) {
+        final Interpreter interpreter = step.interpreter(variables);
+        setup.accept(interpreter);
+
+        Object result = null;
+        Exception error = null;
+        try {
+            result = interpreter.interpret();
+        } catch (Exception e) {
+            error = e;
+        }
+
+        // Variables written before an error still count.
+        return new Outcome(result, error, interpreter.getGlobalScopeWrites());
+    }
+
+    // The variables as seen by a single step. Only the variables the step may read
+    // can have been written by earlier steps, and all of those are done by the
+    // time the step runs.
+    private static final class View extends AbstractMap<String, Object> {
+
+        private final Map<String, Object> base;
+        private final Map<String, int[]> sources;
+        private final Outcome[] outcomes;
+
+        View(Map<String, Object> base, Map<String, int[]> sources, Outcome[] outcomes) {
+            this.base = base;
+            this.sources = sources;
+            this.outcomes = outcomes;
+        }
+
+        // The writes of the last step that wrote the given variable, if any
+        private Map<String, Object> writer(Object key) {
+            final int[] steps = sources.get(key);
+            if (steps != null) {
+                for (int i = steps.length - 1; i >= 0; i -= 1) {
+                    final Map<String, Object> writes = outcomes[steps[i]].writes;
+                    if (writes.containsKey(key)) {
+                        return writes;
+                    }
+                }
+            }
+            return base;
+        }
+
+        @Override
+        public Object get(Object key) {
+            return writer(key).get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return writer(key).containsKey(key);
+        }
+
+        // Iterating over all the variables is rare, so a merged copy is good enough.
+        @Override
+        public Set<Entry<String, Object>> entrySet() {
+            final Map<String, Object> merged = new HashMap<>(base);
+            for (String key : sources.keySet()) {
+                final Map<String, Object> writer = writer(key);
+                if (writer != base) {
+                    merged.put(key, writer.get(key));
+                }
+            }
+            return merged.entrySet();
+        }
+    }
+}
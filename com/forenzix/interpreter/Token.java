@@ -1,5 +1,7 @@
 package com.forenzix.interpreter;
 
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Set;
 
 /*
@@ -16,6 +18,17 @@ public class Token {
     final Set<TokenType> types;
     final int precedence;
     final boolean rightassoc;
+    final int newlines;
+
+    // Tokens of a single type share the same set of types. This must be set up
+    // before any Token is created.
+    private static final Map<TokenType, Set<TokenType>> singleTypes = new EnumMap<>(TokenType.class);
+
+    static {
+        for (TokenType type : TokenType.values()) {
+            singleTypes.put(type, Set.of(type));
+        }
+    }
 
     static final Token Empty = new Token("empty", TokenType.Keyword);
     static final Token If = new Token("if", TokenType.Keyword);
@@ -83,11 +96,11 @@ public class Token {
     }
 
     private Token(String val, TokenType type, int precedence, boolean rightassoc) {
-        this(val, Set.of(type), precedence, rightassoc);
+        this(val, singleTypes.get(type), precedence, rightassoc);
     }
 
     private Token(String val, TokenType type, int precedence) {
-        this(val, Set.of(type), precedence, false);
+        this(val, singleTypes.get(type), precedence, false);
     }
 
     private Token(String val, Set<TokenType> types, int precedence) {
@@ -99,6 +112,16 @@ public class Token {
         this.types = Set.copyOf(types);
         this.precedence = precedence;
         this.rightassoc = rightassoc;
+        this.newlines = countNewlines(val);
+    }
+
+    // Counted once per token, so the Parser can track line numbers for free.
+    private static int countNewlines(String val) {
+        int count = 0;
+        for (int i = val.indexOf('\n'); i != -1; i = val.indexOf('\n', i + 1)) {
+            count += 1;
+        }
+        return count;
     }
 
     public boolean hasValue() {
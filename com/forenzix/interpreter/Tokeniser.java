@@ -1,5 +1,6 @@
 package com.forenzix.interpreter;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class Tokeniser {
@@ -34,211 +35,264 @@ public class Tokeniser {
      **************************************************************************/
 
     public Token nextToken() {
-        final StringBuffer buffer = new StringBuffer();
-        String state = "Waiting";
-        while (peek() != Token.EOF || buffer.length() > 0) {
-
-            // Building a String Literal
-            if (state.startsWith("String Literal")) {
-                if (state.endsWith("Double") && tryConsume(Token.DoubleQuote)) {
-                    final String bufferValue = escape(buffer.toString());
-                    buffer.setLength(0);
-                    return Token.makeToken(bufferValue, TokenType.StringLiteral);
-                } else if (state.endsWith("Single") && tryConsume(Token.SingleQuote)) {
-                    final String bufferValue = escape(buffer.toString());
-                    buffer.setLength(0);
-                    return Token.makeToken(bufferValue, TokenType.StringLiteral);
-                } else {
-                    buffer.append(consume());
-                }
-            }
-
-            // Building a comment
-            else if (state == "Comment") {
-                if (tryConsume(Token.Newline)) {
-                    buffer.append("\n");
-                    return Token.makeToken(buffer.toString(), TokenType.Comment);
-                } else if (peek() == Token.EOF) {
-                    return Token.makeToken(buffer.toString(), TokenType.Comment);
-                } else {
-                    buffer.append(consume());
-                }
+        while (true) {
+            final char c = peek();
+            if (c == Token.EOF) {
+                // No more tokens can be found, and an End of Tokens token will be returned.
+                return Token.EOT;
             }
 
-            // Building a Qualifier or Keyword
-            else if (peek() == '_' || alpha(peek()) || (alphanum(peek()) && state == "Word")) {
-                buffer.append(consume());
-                state = "Word";
-            }
-
-            // Building Date or Number Literal
-            else if (numeric(peek()) && (state == "Decimal" || state == "Date")) {
-                buffer.append(consume());
+            switch (c < CLASSES.length ? CLASSES[c] : INVALID) {
+                // Spaces are ignored.
+                case SPACE:
+                    charIndex += 1;
+                    continue;
+
+                // Building a Qualifier or Keyword
+                case WORD:
+                    return word(charIndex);
+
+                // Building a Number or Date Literal
+                case DIGIT:
+                    return number();
+
+                // Single character operator or punctuation token
+                case SINGLE:
+                    charIndex += 1;
+                    return SINGLES[c];
+
+                // The token could be a single or double character operator
+                case COMPARISON:
+                    charIndex += 1;
+                    if (peek() != '=') {
+                        return SINGLES[c];
+                    }
+                    charIndex += 1;
+                    return c == '<' ? Token.LessEqual
+                            : c == '>' ? Token.GreaterEqual
+                            : c == '=' ? Token.Equals
+                            : Token.NotEquals;
+
+                // The token could signal the start of a string literal
+                case QUOTE:
+                    charIndex += 1;
+                    return string(c);
+
+                // The token could be the start of a comment
+                case HASH:
+                    charIndex += 1;
+                    return comment();
+
+                // Finally, the character cannot be identified.
+                default:
+                    throw new RuntimeException("Invalid token: " + c);
             }
+        }
+    }
 
-            // Building a Number Literal
-            else if (numeric(peek()) && (state == "Waiting" || state == "Number")) {
-                buffer.append(consume());
-                state = "Number";
-            }
+    // Words run for as long as there are letters, digits, or underscores. Words
+    // may start with digits, when a number literal runs into a letter (12ab).
+    private Token word(int start) {
+        while (alphanum(peek()) || peek() == '_') {
+            charIndex += 1;
+        }
 
-            // Building a Date Literal
-            else if (peek() == '/' && (state == "Number" || state == "Date")) {
-                buffer.append(consume());
-                state = "Date";
-            }
+        final String value = expression.substring(start, charIndex);
+        final Token keyword = getKeyword(value);
+        return keyword != null ? keyword : Token.makeToken(value, TokenType.Qualifier);
+    }
 
-            // Building a Decimal Number Literal
-            else if (peek() == '.' && (state == "Number")) {
-                buffer.append(consume());
-                state = "Decimal";
+    // Numbers are digits with at most one decimal point (12.5). Dates are digits
+    // separated by slashes (31/12/2020), which is checked for loosely here and
+    // properly by the Parser.
+    private Token number() {
+        final int start = charIndex;
+        int state = NUMBER;
+        while (true) {
+            final char c = peek();
+            if (alpha(c) || c == '_') {
+                return word(start);
+            } else if (numeric(c)) {
+                charIndex += 1;
+            } else if (c == '/' && (state == NUMBER || state == DATE)) {
+                charIndex += 1;
+                state = DATE;
+            } else if (c == '.' && state == NUMBER) {
+                charIndex += 1;
+                state = DECIMAL;
+            } else {
+                break;
             }
+        }
 
-            else {
-                // If the buffer is full, it means a Keyword or Literal is ready to be tokenised
-                if (buffer.length() > 0) {
-                    final String bufferValue = buffer.toString();
-                    if (state == "Number" || state == "Decimal") {
-                        return Token.makeToken(bufferValue, TokenType.NumberLiteral);
-                    }
-
-                    else if (state == "Date") {
-                        return Token.makeToken(bufferValue, TokenType.DateLiteral);
-                    }
+        final String value = expression.substring(start, charIndex);
+        return Token.makeToken(value, state == DATE ? TokenType.DateLiteral : TokenType.NumberLiteral);
+    }
 
-                    else {
-                        final Token keyword = getKeyword(bufferValue);
-                        if (keyword != null) {
-                            return keyword;
-                        } else {
-                            return Token.makeToken(bufferValue, TokenType.Qualifier);
-                        }
-                    }
-                }
+    // Strings run until the next matching quote, escaped or not. A quote at the
+    // very end of the input is ignored.
+    private Token string(char quote) {
+        if (peek() == Token.EOF) {
+            return Token.EOT;
+        }
 
-                // Otherwise, token could be a single character operator or punctuation token
-                final Token singleChar = consumeSingleCharToken();
-                if (singleChar != null)
-                    return singleChar;
+        final int end = expression.indexOf(quote, charIndex);
+        if (end == -1) {
+            throw new RuntimeException("Unterminated string literal: " + expression.substring(charIndex - 1));
+        }
 
-                // Otherwise, The token could be a single or double character operator
-                else if (tryConsume(Token.Less)) {
-                    return tryConsume(Token.EqualSign) ? Token.LessEqual : Token.Less;
-                }
+        final String value = escape(expression.substring(charIndex, end));
+        charIndex = end + 1;
+        return Token.makeToken(value, TokenType.StringLiteral);
+    }
 
-                else if (tryConsume(Token.EqualSign)) {
-                    return tryConsume(Token.EqualSign) ? Token.Equals : Token.EqualSign;
-                }
+    // Comments run until the end of the line, which they include, or the end of
+    // the input.
+    private Token comment() {
+        if (peek() == Token.EOF) {
+            return Token.EOT;
+        }
 
-                else if (tryConsume(Token.Greater)) {
-                    return tryConsume(Token.EqualSign) ? Token.GreaterEqual : Token.Greater;
-                }
+        final int start = charIndex;
+        while (peek() != '\n' && peek() != Token.EOF) {
+            charIndex += 1;
+        }
+        if (peek() == '\n') {
+            charIndex += 1;
+        }
 
-                else if (tryConsume(Token.Exclaim)) {
-                    return tryConsume(Token.EqualSign) ? Token.NotEquals : Token.Exclaim;
-                }
+        return Token.makeToken(expression.substring(start, charIndex), TokenType.Comment);
+    }
 
-                // Otherwise, token could signal the start of a string literal
-                else if (tryConsume(Token.DoubleQuote)) {
-                    state = "String Literal Double";
-                }
+    // Replaces the escape sequences \n, \t, \r, \b, \" and \' in a single pass.
+    private static String escape(String text) {
+        int backslash = text.indexOf('\\');
+        if (backslash == -1) {
+            return text;
+        }
 
-                else if (tryConsume(Token.SingleQuote)) {
-                    state = "String Literal Single";
-                }
+        final StringBuilder escaped = new StringBuilder(text.length());
+        int from = 0;
+        while (backslash != -1 && backslash + 1 < text.length()) {
+            final char replacement;
+            switch (text.charAt(backslash + 1)) {
+                case 'n': replacement = '\n'; break;
+                case 't': replacement = '\t'; break;
+                case 'r': replacement = '\r'; break;
+                case 'b': replacement = '\b'; break;
+                case '"': replacement = '"'; break;
+                case '\'': replacement = '\''; break;
+                default:
+                    backslash = text.indexOf('\\', backslash + 1);
+                    continue;
+            }
 
-                // Otherwise, token could be the start of a comment
-                else if (tryConsume(Token.Hashtag)) {
-                    state = "Comment";
-                }
+            escaped.append(text, from, backslash).append(replacement);
+            from = backslash + 2;
+            backslash = text.indexOf('\\', from);
+        }
 
-                // Otherwise, token is a space and can be ignored.
-                else if (space(peek())) {
-                    consume();
-                }
+        return escaped.append(text, from, text.length()).toString();
+    }
 
-                // Finally, if no token has been returned, the character cannot be identified.
-                // This is likely unreachable.
-                else {
-                    throw new RuntimeException("Invalid token: " + peek());
-                }
-            }
+    /*
+     * Character Classes
+     *
+     * Every ASCII character is given a class that decides which kind of token it
+     * starts. Characters outside of ASCII cannot start a token.
+     */
+    private static final byte INVALID = 0, SPACE = 1, WORD = 2, DIGIT = 3, SINGLE = 4,
+            COMPARISON = 5, QUOTE = 6, HASH = 7;
+    private static final byte[] CLASSES = new byte[128];
+    private static final Token[] SINGLES = new Token[128];
+
+    // States of a number literal.
+    private static final int NUMBER = 0, DECIMAL = 1, DATE = 2;
+
+    static {
+        for (char c = 0; c < CLASSES.length; c += 1) {
+            CLASSES[c] = alpha(c) || c == '_' ? WORD
+                    : numeric(c) ? DIGIT
+                    : space(c) ? SPACE
+                    : INVALID;
         }
 
-        // No more tokens can be found, and an End of Tokens token will be returned.
-        return Token.EOT;
-    }
+        for (Token t : List.of(
+                Token.Ampersand, Token.Pipe, Token.Tilde, Token.Plus, Token.Hyphen,
+                Token.Asterisk, Token.ForwardSlash, Token.Percent, Token.Caret, Token.At,
+                Token.Question, Token.Comma, Token.Colon, Token.Newline,
+                Token.Period, Token.SemiColon, Token.BackSlash, Token.OpenParen,
+                Token.CloseParen, Token.OpenCurly, Token.CloseCurly, Token.OpenSquare,
+                Token.CloseSquare)) {
+            CLASSES[t.value.charAt(0)] = SINGLE;
+            SINGLES[t.value.charAt(0)] = t;
+        }
 
-    private String escape(String text) {
-        text = text.replaceAll("\\\\n", "\n");
-        text = text.replaceAll("\\\\t", "\t");
-        text = text.replaceAll("\\\\r", "\r");
-        text = text.replaceAll("\\\\b", "\b");
-        text = text.replaceAll("\\\\\"", "\"");
-        text = text.replaceAll("\\\\\'", "\'");
+        for (Token t : List.of(Token.Less, Token.EqualSign, Token.Greater, Token.Exclaim)) {
+            CLASSES[t.value.charAt(0)] = COMPARISON;
+            SINGLES[t.value.charAt(0)] = t;
+        }
 
-        return text;
+        CLASSES['"'] = QUOTE;
+        CLASSES['\''] = QUOTE;
+        CLASSES['#'] = HASH;
     }
 
-    // List of all single character tokens for simplicity.
-    private static final List<Token> singles = List.of(
-            Token.Ampersand, Token.Pipe, Token.Tilde, Token.Plus, Token.Hyphen,
-            Token.Asterisk, Token.ForwardSlash, Token.Percent, Token.Caret, Token.At,
-            Token.Underscore, Token.Question, Token.Comma, Token.Colon, Token.Newline,
-            Token.Period, Token.SemiColon, Token.BackSlash, Token.OpenParen,
-            Token.CloseParen, Token.OpenCurly, Token.CloseCurly, Token.OpenSquare,
-            Token.CloseSquare);
-
-    private Token consumeSingleCharToken() {
-        for (Token t : singles) {
-            if (tryConsume(t)) {
-                return t;
-            }
+    /*
+     * Keywords
+     *
+     * Keywords are grouped by their first character, which is all it takes to
+     * tell most qualifiers from keywords without comparing any strings. Words
+     * starting like a keyword are compared with the few keywords that start the
+     * same way.
+     */
+    private static final Token[][] KEYWORDS = new Token[128][];
+
+    static {
+        for (Token t : List.of(
+                Token.Empty, Token.If, Token.Else, Token.While, Token.Let, Token.True, Token.False,
+                Token.And, Token.Not, Token.Xor, Token.Define, Token.Return, Token.Or)) {
+            final Token[] group = KEYWORDS[t.value.charAt(0)];
+            KEYWORDS[t.value.charAt(0)] = group == null ? new Token[] { t } : append(group, t);
         }
-        return null;
     }
 
-    private static final List<Token> keywords = List.of(
-            Token.Empty, Token.If, Token.Else, Token.While, Token.Let, Token.True, Token.False,
-            Token.And, Token.Not, Token.Xor, Token.Define, Token.Return, Token.Or);
+    private static Token[] append(Token[] group, Token t) {
+        final Token[] appended = Arrays.copyOf(group, group.length + 1);
+        appended[group.length] = t;
+        return appended;
+    }
 
+    // Words start with an ASCII letter, digit or underscore.
     private Token getKeyword(String value) {
-        for (Token t : keywords) {
-            if (t.value.equals(value)) {
-                return t;
+        final Token[] group = KEYWORDS[value.charAt(0)];
+        if (group != null) {
+            for (Token keyword : group) {
+                if (keyword.value.equals(value)) {
+                    return keyword;
+                }
             }
         }
         return null;
     }
 
-    private boolean tryConsume(Token token) {
-        final boolean success;
-        if (success = String.valueOf(peek()).equals(token.value)) {
-            consume();
-        }
-        return success;
-    }
-
     /*
      * Character Handling
      * 
      * Keep track of our positions in the program string and advance only when
      * needed. The tokeniser can peek() to see what character is currently being
      * read and available to pick up for processing. To progress forward the
-     * tokeniser can consume() the character.
+     * tokeniser advances its position.
      * 
-     * Other helper functions exist to make peeking and consuming easier, like
-     * tryConsume(), and getKeyword().
+     * Tokens that span several characters are not built up character by
+     * character; the tokeniser only moves forward to find where they end and then
+     * takes their value from the program string in one go.
      */
 
     private char peek() {
         return charIndex == expression.length() ? Token.EOF : expression.charAt(charIndex);
     }
 
-    private char consume() {
-        return charIndex == expression.length() ? Token.EOF : expression.charAt(charIndex++);
-    }
-
     public void reset() {
         charIndex = 0;
     }
@@ -248,19 +302,19 @@ public class Tokeniser {
     }
 
     // Helper character identification functions.
-    private boolean alphanum(Character c) {
+    private static boolean alphanum(char c) {
         return alpha(c) || numeric(c);
     }
 
-    private boolean numeric(Character c) {
+    private static boolean numeric(char c) {
         return (c >= '0' && c <= '9');
     }
 
-    private boolean alpha(Character c) {
+    private static boolean alpha(char c) {
         return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
     }
 
-    private boolean space(Character c) {
+    private static boolean space(char c) {
         return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\b';
     }
 }
@@ -0,0 +1,125 @@
+package com.forenzix.word;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFTable;
+import org.apache.poi.xwpf.usermodel.XWPFTableCell;
+
+/**
+ * Times the replacement of tags in a generated document, from the command
+ * line:
+ *
+ * <pre>
+ *     java -cp &lt;classes&gt; com.forenzix.word.Benchmark [paragraphs] [seconds per case]
+ * </pre>
+ *
+ * The document has 2,000 paragraphs by default. Each paragraph holds three tags
+ * split across runs, the way Word splits them. A table of 200 rows follows,
+ * with a tag in every cell. Every round opens a fresh copy of the document and
+ * builds its replacers, then only the replacement is timed. Rounds run for a
+ * warm-up time, then for the measured time (5 seconds by default). The mean
+ * time and allocation of a round are printed.
+ * <p>
+ * This is a plain loop rather than a JMH harness, which the project does not
+ * depend on. Numbers are only comparable between runs on the same machine.
+ *
+ * @see Replacers
+ */
+public final class Benchmark {
+
+    private static long nanos = 5_000_000_000L;
+
+    // Counts the bytes each thread allocates, on HotSpot JVMs
+    private static final com.sun.management.ThreadMXBean THREADS = ManagementFactory
+            .getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+            && threads.isThreadAllocatedMemorySupported() ? threads : null;
+
+    private Benchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int paragraphs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        if (args.length > 1) {
+            nanos = (long) (Double.parseDouble(args[1]) * 1e9);
+        }
+
+        final byte[] template = template(paragraphs);
+        System.out.println("Replacers (%d paragraphs, %d tags):".formatted(paragraphs, paragraphs * 3 + 200 * 3));
+
+        time("orderedReplace", template, doc -> {
+            final List<Replacer> replacers = new ArrayList<>();
+            for (String tag : Extractor.extractTags(doc)) {
+                replacers.add(Replacer.of(tag, "replacement"));
+            }
+            return () -> Replacers.orderedReplace(doc, replacers);
+        });
+
+        time("locatedReplace", template, doc -> {
+            final List<Replacer> replacers = new ArrayList<>();
+            Extractor.extractTags(doc, tag -> replacers.add(Replacer.of(tag, "replacement")));
+            return () -> Replacers.locatedReplace(doc, replacers);
+        });
+    }
+
+    private static byte[] template(int paragraphs) throws IOException {
+        try (final XWPFDocument doc = new XWPFDocument()) {
+            for (int i = 0; i < paragraphs; i += 1) {
+                final XWPFParagraph p = doc.createParagraph();
+                for (String text : new String[] { "Item " + i + " ", "<<", "Items.A" + i, ">>: <<amount",
+                        " :%.2f>> due <<da", "te>>." }) {
+                    p.createRun().setText(text);
+                }
+            }
+
+            final XWPFTable table = doc.createTable(200, 3);
+            for (int row = 0; row < 200; row += 1) {
+                for (XWPFTableCell cell : table.getRow(row).getTableCells()) {
+                    cell.getParagraphs().get(0).createRun().setText("<<Totals.B" + row + ">>");
+                }
+            }
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            doc.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    // Replaces the tags of fresh copies of the template for the warm-up time,
+    // then for the measured time, and prints the mean time and bytes allocated
+    // by the replacement alone.
+    private static void time(String name, byte[] template, Function<XWPFDocument, Runnable> prepare)
+            throws IOException {
+        rounds(template, prepare);
+        final long[] measured = rounds(template, prepare);
+        System.out.println("  %-28s %12.2f ms/op %12s".formatted(name, measured[1] / 1e6 / measured[0],
+                THREADS == null ? "" : "%.0f KB/op".formatted(measured[2] / 1024.0 / measured[0])));
+    }
+
+    // The number of rounds, and the nanoseconds and bytes they took
+    private static long[] rounds(byte[] template, Function<XWPFDocument, Runnable> prepare) throws IOException {
+        final long[] totals = new long[3];
+        for (final long end = System.nanoTime() + nanos; System.nanoTime() < end;) {
+            try (final XWPFDocument doc = new XWPFDocument(new ByteArrayInputStream(template))) {
+                final Runnable replace = prepare.apply(doc);
+                final long allocated = allocated(), start = System.nanoTime();
+                replace.run();
+                totals[1] += System.nanoTime() - start;
+                totals[2] += allocated() - allocated;
+                totals[0] += 1;
+            }
+        }
+        return totals;
+    }
+
+    private static long allocated() {
+        return THREADS == null ? 0 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,240 @@
+package com.forenzix.word;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+
+import com.forenzix.common.MappedZip;
+import com.forenzix.interpreter.Interpreter;
+import com.forenzix.interpreter.Program;
+import com.forenzix.interpreter.Sequence;
+
+/**
+ * A template document that has been read and compiled ahead of time. The
+ * template file is read and inflated once, its tags are extracted once, and the
+ * program of every tag is parsed once. The result can be shared read-only between any
+ * number of reports, including reports generated on different threads.
+ * <p>
+ * Tags that only appear after a document has been pre-processed (for example
+ * tags in repeated sections, whose contract ordinals are filled in per report)
+ * are compiled the first time they are requested and cached from then on.
+ *
+ * @see Extractor
+ * @see Program
+ */
+public final class CompiledTemplate {
+
+    private final TemplatePrototype prototype;
+    private final List<Tag> specialTags;
+    private final Map<String, Tag> tags = new ConcurrentHashMap<>();
+    private final Set<String> references, strings, memberAccesses;
+
+    private CompiledTemplate(TemplatePrototype prototype) throws IOException {
+        this.prototype = prototype;
+
+        final List<Tag> special = new ArrayList<>();
+        try (final XWPFDocument doc = open()) {
+            Extractor.extractTags(doc, tag -> {
+                if (tag.text.startsWith("<<<")) {
+                    special.add(new Tag(tag.text, true));
+                } else {
+                    tags.computeIfAbsent(tag.text, t -> new Tag(t, false));
+                }
+            });
+        }
+
+        this.specialTags = Collections.unmodifiableList(special);
+
+        final Set<String> references = new HashSet<>(), strings = new HashSet<>(), memberAccesses = new HashSet<>();
+        for (Tag tag : special) {
+            tag.addReferences(references, strings, memberAccesses);
+        }
+        for (Tag tag : tags.values()) {
+            tag.addReferences(references, strings, memberAccesses);
+        }
+        this.references = Collections.unmodifiableSet(references);
+        this.strings = Collections.unmodifiableSet(strings);
+        this.memberAccesses = Collections.unmodifiableSet(memberAccesses);
+    }
+
+    /**
+     * Reads and compiles the template document at the specified location.
+     *
+     * @param docfile path of the template document
+     * @return compiled template
+     * @throws IOException if the template cannot be read
+     */
+    public static CompiledTemplate compile(String docfile) throws IOException {
+        try (final MappedZip zip = MappedZip.open(Paths.get(docfile))) {
+            return new CompiledTemplate(TemplatePrototype.of(zip));
+        }
+    }
+
+    /**
+     * Opens a fresh, modifiable copy of the template document. Every report needs
+     * its own copy since generating a report alters the document. The copy is made
+     * from parts already inflated in memory, so only their XML is parsed again.
+     *
+     * @return a new document identical to the template
+     * @throws IOException if the document cannot be read
+     */
+    public XWPFDocument open() throws IOException {
+        return new XWPFDocument(prototype.open());
+    }
+
+    /**
+     * Returns the compiled special tags of the template, in document order.
+     * <b>Special tags</b> start with triple angle brackets.
+     *
+     * @return list of special tags
+     */
+    public List<Tag> specialTags() {
+        return specialTags;
+    }
+
+    /**
+     * Returns every name and every string literal found in the tags of the
+     * template document, which covers everything the tags may look up in a
+     * workbook, other than addresses computed at run time. Tags in repeated
+     * sections are included as they appear in the template, before their
+     * contract ordinals are filled in (with CN rather than C1, C2...).
+     *
+     * @return names and strings referenced by the template
+     */
+    public Set<String> references() {
+        return references;
+    }
+
+    /**
+     * Returns the string literals found in the tags of the template document.
+     *
+     * @return strings referenced by the template
+     * @see #references()
+     */
+    public Set<String> strings() {
+        return strings;
+    }
+
+    /**
+     * Returns the member accesses found in the tags of the template document,
+     * written as object.member (Home.A1, sum.Home.B2:B500).
+     *
+     * @return member accesses of the template
+     * @see #references()
+     */
+    public Set<String> memberAccesses() {
+        return memberAccesses;
+    }
+
+    /**
+     * Returns the compiled normal tag with the given text. Tags that have not been
+     * seen before are compiled and cached.
+     *
+     * @param tag the text of the tag, including its angle brackets
+     * @return compiled tag
+     */
+    public Tag tag(String tag) {
+        return tags.computeIfAbsent(tag, t -> new Tag(t, false));
+    }
+
+    /**
+     * A single tag of the template. It holds the source of the tag's program, its
+     * format specification (if any), and the parsed program ready to be
+     * interpreted.
+     * <p>
+     * Tags are immutable. They are steps of a {@link Sequence}, so that the tags of
+     * a document can be run together.
+     */
+    public static final class Tag implements Sequence.Step {
+
+        // A colon between the two cells of a range member (Home.B2:B500) does not
+        // start a format spec.
+        private static final Pattern RANGE_COLON = Pattern.compile("(?<=\\.[A-Za-z]{1,3}[0-9]{1,7}):[A-Za-z]{1,3}[0-9]{1,7}\\s*$");
+
+        public final String text, source, spec;
+        private final Program program;
+
+        private Tag(String text, boolean special) {
+            String prog;
+            String spec = null;
+
+            // Assume tags are of the form <<...>> or <<<...>>>
+            if (special) {
+                prog = text.substring(3, text.length() - 3);
+            } else {
+                prog = text.substring(2, text.length() - 2);
+
+                final int colon = prog.lastIndexOf(':');
+                final int quote = Math.max(prog.lastIndexOf('\"'), prog.lastIndexOf('\''));
+                if (colon != -1 && quote < colon && !isRangeColon(prog, colon)) {
+                    spec = prog.substring(colon + 1, prog.length()).strip();
+                    prog = prog.substring(0, colon);
+                }
+            }
+
+            this.text = text;
+            this.source = prog;
+            this.spec = spec;
+
+            // Parse errors are not raised here. They surface when the tag is
+            // interpreted so that they are reported against the tag like any other
+            // error.
+            Program program;
+            try {
+                program = Program.compile(prog);
+            } catch (Exception e) {
+                program = null;
+            }
+            this.program = program;
+        }
+
+        private static boolean isRangeColon(String prog, int colon) {
+            return RANGE_COLON.matcher(prog).region(colon, prog.length()).useTransparentBounds(true).matches();
+        }
+
+        /**
+         * Creates an interpreter for this tag's program over the given variables.
+         *
+         * @param variables initial global variables
+         * @return a new interpreter
+         */
+        @Override
+        public Interpreter interpreter(Map<String, Object> variables) {
+            return program != null ? new Interpreter(program, variables) : new Interpreter(source, variables);
+        }
+
+        // A tag that cannot be parsed fails before touching any variable.
+        @Override
+        public Set<String> reads() {
+            return program != null ? program.getReads() : Set.of();
+        }
+
+        @Override
+        public Set<String> writes() {
+            return program != null ? program.getWrites() : Set.of();
+        }
+
+        private void addReferences(Set<String> references, Set<String> strings, Set<String> memberAccesses) {
+            if (program != null) {
+                references.addAll(program.getReads());
+                references.addAll(program.getStringLiterals());
+                strings.addAll(program.getStringLiterals());
+                memberAccesses.addAll(program.getMemberAccesses());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -1,12 +1,17 @@
 package com.forenzix.word;
 
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.apache.poi.xwpf.usermodel.IBodyElement;
 import org.apache.poi.xwpf.usermodel.XWPFDocument;
 import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFRun;
 import org.apache.poi.xwpf.usermodel.XWPFSDT;
 import org.apache.poi.xwpf.usermodel.XWPFTable;
 import org.apache.poi.xwpf.usermodel.XWPFTableCell;
@@ -71,131 +76,262 @@ public abstract class Extractor {
      * @return list of tags
      */
     public static List<String> extractTags(XWPFDocument doc) {
-        // Collect all string content from paragraphs and tables throughout the
-        // input document.
-        final StringBuilder builder = new StringBuilder();
-        for (IBodyElement element : doc.getBodyElements())
-            getStringContents(element, builder);
-
-        final String contents = builder.toString();
-        final List<String> tags = new LinkedList<>();
-
-        /*
-         * The extractor uses a state machine to read and recognise tags form the
-         * text content of the input document. The state machine operates as follows:
-         * start in a WAITING state
-         * WAITING:
-         * Look for a series of consequtive less than (<) characters.
-         * Once found record their length and change state to BUILDING.
-         * 
-         * BUILDING:
-         * Look for a quote mark (") or greater than (>) character.
-         * If a quote mark is found, change stage to STRINGING.
-         * If > is found:
-         *   Count occurances of > that exist in a row.
-         *   If this count matches length:
-         *     A valid tag is found and added to the list of tags.
-         *     change the state to WAITING.
-         * 
-         * STRINGING:
-         * Look for a quote mark (").
-         * If not preceeded by a backward slash (\), change state to BUIDLING.
-         */
+        final List<String> tags = new ArrayList<>();
+        extractTags(doc, tag -> tags.add(tag.text));
+        return tags;
+    }
+
+    /**
+     * Extracts all tags from the input document, and hands them over to the
+     * specified consumer one at a time, in document order. Tags are recognised as
+     * described in {@link Extractor#extractTags(XWPFDocument)
+     * Extractor.extractTags}.
+     * <p>
+     * The document is read one run at a time, and only the text of the tag being
+     * recognised is kept, so memory use does not grow with the size of the
+     * document. Every tag comes with its location in the document, so that it can
+     * be replaced without being searched for again (see
+     * {@link Replacers#locatedReplace(XWPFDocument, List)
+     * Replacers.locatedReplace}).
+     * 
+     * @param doc      input document
+     * @param consumer receiver of the tags
+     */
+    public static void extractTags(XWPFDocument doc, Consumer<Tag> consumer) {
+        final Scanner scanner = new Scanner(consumer);
+        final List<IBodyElement> elements = doc.getBodyElements();
+        for (int i = 0; i < elements.size(); i += 1) {
+            scanner.path.addLast(i);
+            scanner.scan(elements.get(i));
+            scanner.path.removeLast();
+        }
+        scanner.finish();
+    }
+
+    /**
+     * A tag found in a document, along with where it was found.
+     * <p>
+     * The location of a tag is the path of the paragraph it is in, and the runs it
+     * spans in that paragraph. A path lists indexes from the body of the document
+     * down to the paragraph: the index of a body element, then, within tables, the
+     * index of a row, of a cell, and of a body element of that cell, and so on.
+     * The tag starts at {@code start} in its first run, and ends before
+     * {@code end} in its last run.
+     * <p>
+     * A tag may start in one paragraph and end in another. Such a tag cannot be
+     * replaced, and has the path of the paragraph it ends in as well.
+     * <p>
+     * Tags are immutable.
+     */
+    public static final class Tag {
+
+        public final String text;
+        final int[] path, endPath;
+        public final int firstRun, start, lastRun, end;
+
+        private Tag(String text, int[] path, int firstRun, int start, int[] endPath, int lastRun, int end) {
+            this.text = text;
+            this.path = path;
+            this.firstRun = firstRun;
+            this.start = start;
+            this.endPath = endPath;
+            this.lastRun = lastRun;
+            this.end = end;
+        }
+
+        public int[] getPath() {
+            return path.clone();
+        }
+
+        public int[] getEndPath() {
+            return endPath.clone();
+        }
+
+        public boolean spansParagraphs() {
+            return path != endPath;
+        }
+
+        @Override
+        public String toString() {
+            return text + " @ " + Arrays.toString(path) + ":" + firstRun + "." + start;
+        }
+    }
+
+    /*
+     * The extractor uses a state machine to read and recognise tags form the
+     * text content of the input document. The text of all paragraphs is read as
+     * if it was one continuous string. The state machine operates as follows:
+     * start in a WAITING state
+     * WAITING:
+     * Look for a series of consequtive less than (<) characters.
+     * Once found record their length and change state to BUILDING.
+     * 
+     * BUILDING:
+     * Look for a quote mark (") or greater than (>) character.
+     * If a quote mark is found, change stage to STRINGING.
+     * If > is found:
+     *   Count occurances of > that exist in a row.
+     *   If this count matches length:
+     *     A valid tag is found and added to the list of tags.
+     *     change the state to WAITING.
+     * 
+     * STRINGING:
+     * Look for a quote mark (").
+     * If not preceeded by a backward slash (\), change state to BUIDLING.
+     * 
+     * Since the text is fed to the machine one character at a time, it counts
+     * runs of angle brackets as it reads them instead of looking ahead.
+     */
+    private static final class Scanner {
 
         // Extractor states
-        final int WAITING = 0, // indicates we have yet to encounter a tag
+        private static final int WAITING = 0, // indicates we have yet to encounter a tag
                 BUILDING = 1, // we have encountered a tag and currently building it
                 STRINGING = 2; // we have encountered a string literal within a tag
 
-        int i, // current character position
-                state, // extractor state
-                length, // length of current tag opening
-                start; // start position of current tag
+        private final Consumer<Tag> consumer;
+        private final StringBuilder tag = new StringBuilder();
+        private final Deque<Integer> path = new ArrayDeque<>();
 
-        for (i = state = length = start = 0; i < contents.length(); i += 1) {
-            switch (state) {
-                case WAITING:
+        private int state = WAITING,
+                length = 0, // length of current tag opening
+                brackets = 0; // number of consecutive angle brackets just read
+        private char previous = 0;
 
-                    // Count occurances of (<)
-                    int j = 0;
-                    while (contents.charAt(i + j) == '<')
-                        j += 1;
+        // Current position: the path of the paragraph, the run and the offset in it
+        private int[] paragraph;
+        private int run, offset;
 
-                    if (j <= 1)
+        // Location of the first (<) and last (>) characters of the current tag
+        private int[] startPath, endPath;
+        private int firstRun, start, lastRun, end;
+
+        Scanner(Consumer<Tag> consumer) {
+            this.consumer = consumer;
+        }
+
+        // Scan all text in a given body element
+        void scan(IBodyElement element) {
+            if (element instanceof XWPFParagraph) {
+                scan((XWPFParagraph) element);
+            } else if (element instanceof XWPFTable) {
+                scan((XWPFTable) element);
+            } else if (element instanceof XWPFSDT) {
+                // Not sure if we want to include Content Tables or not. They're uneditable
+                // either way.
+            } else {
+                System.out.println(
+                        String.format("Unrecognised IBodyElement type: %s.", element.getClass().getSimpleName()));
+            }
+        }
+
+        // Scan all text in a given table.
+        private void scan(XWPFTable table) {
+            final List<XWPFTableRow> rows = table.getRows();
+            for (int r = 0; r < rows.size(); r += 1) {
+                path.addLast(r);
+                final List<XWPFTableCell> cells = rows.get(r).getTableCells();
+                for (int c = 0; c < cells.size(); c += 1) {
+                    path.addLast(c);
+                    final List<IBodyElement> elements = cells.get(c).getBodyElements();
+                    for (int e = 0; e < elements.size(); e += 1) {
+                        path.addLast(e);
+                        scan(elements.get(e));
+                        path.removeLast();
+                    }
+                    path.removeLast();
+                }
+                path.removeLast();
+            }
+        }
+
+        // Scan all text in a given paragraph, run by run, as Replacers sees it
+        private void scan(XWPFParagraph p) {
+            paragraph = path.stream().mapToInt(Integer::intValue).toArray();
+            final List<XWPFRun> runs = p.getRuns();
+            for (run = 0; run < runs.size(); run += 1) {
+                final String text = runs.get(run).text();
+                for (offset = 0; offset < text.length(); offset += 1)
+                    accept(text.charAt(offset));
+            }
+        }
+
+        // A tag may end with the very last characters of the document.
+        void finish() {
+            if (state == BUILDING && brackets == length)
+                emit();
+        }
+
+        // Feed a single character to the state machine.
+        @SuppressWarnings("fallthrough")
+        private void accept(char c) {
+            switch (state) {
+                case WAITING:
+                    // Count occurances of (<), the first of which may start a tag
+                    if (c == '<') {
+                        if (brackets == 0) {
+                            startPath = paragraph;
+                            firstRun = run;
+                            start = offset;
+                        }
+                        brackets += 1;
                         break;
+                    }
 
                     // If we found more than one consequtive (<) characters
                     // start building
-                    i = (start = i) + (length = j);
+                    if (brackets <= 1) {
+                        brackets = 0;
+                        break;
+                    }
+
+                    for (length = brackets; brackets > 0; brackets -= 1)
+                        tag.append('<');
                     state = BUILDING;
+                    // fall through, since c is the first character of the tag body
 
                 case BUILDING:
-
-                    // Look for (") or (>)
-                    switch (contents.charAt(i)) {
-                        case '\"':
-                            state = STRINGING;
-                        default:
-                            continue;
-                        case '>':
+                    // Count occurances of (>), the last of which may end the tag
+                    if (c == '>') {
+                        brackets += 1;
+                        tag.append(c);
+                        endPath = paragraph;
+                        lastRun = run;
+                        end = offset + 1;
+                        break;
                     }
 
-                    // Count occurances of (>)
-                    int k = 0;
-                    while (i + k < contents.length() && contents.charAt(i + k) == '>')
-                        k += 1;
-
                     // If we found a matching number of consequtive (>) characters
-                    // Collect the tag, and go back to waiting.
-                    if (k == length) {
-                        tags.add(contents.substring(start, i + k));
-                        length = state = WAITING;
+                    // collect the tag, and go back to waiting.
+                    if (brackets == length) {
+                        emit();
+                        accept(c);
+                        return;
                     }
 
-                    // Hence or otherwise, skip the characters we have just processed
-                    i += k - 1;
+                    // Hence or otherwise, look for (")
+                    brackets = 0;
+                    tag.append(c);
+                    if (c == '\"')
+                        state = STRINGING;
                     break;
 
                 case STRINGING:
-
                     // Look for a matching quote mark. It has to be one that isn't escaped.
-                    if (contents.charAt(i) == '\"' && contents.charAt(i - 1) != '\\')
+                    tag.append(c);
+                    if (c == '\"' && previous != '\\')
                         state = BUILDING;
             }
-        }
-
-        return tags;
-    }
 
-    // Get all text in a given body element
-    private static void getStringContents(IBodyElement element, StringBuilder builder) {
-        if (element instanceof XWPFParagraph) {
-            getStringContents(((XWPFParagraph) element), builder);
-        } else if (element instanceof XWPFTable) {
-            getStringContents(((XWPFTable) element), builder);
-        } else if (element instanceof XWPFSDT) {
-            // Not sure if we want to include Content Tables or not. They're uneditable
-            // either way.
-            // getStringContents(((XWPFSDT) element), builder);
-        } else {
-            System.out
-                    .println(String.format("Unrecognised IBodyElement type: %s.", element.getClass().getSimpleName()));
+            previous = c;
         }
-    }
 
-    // Get all text in a given paragraph
-    private static void getStringContents(XWPFParagraph paragraph, StringBuilder builder) {
-        builder.append(paragraph.getParagraphText());
-    }
+        private void emit() {
+            consumer.accept(new Tag(tag.toString(), startPath, firstRun, start, endPath, lastRun, end));
 
-    // Get all text in a given table.
-    private static void getStringContents(XWPFTable table, StringBuilder builder) {
-        for (XWPFTableRow row : table.getRows()) {
-            for (XWPFTableCell cell : row.getTableCells()) {
-                for (IBodyElement element : cell.getBodyElements()) {
-                    getStringContents(element, builder);
-                }
-            }
+            tag.setLength(0);
+            brackets = length = 0;
+            state = WAITING;
         }
     }
 }
@@ -16,6 +16,12 @@ public class Replacer {
 
     public final String bookmark, replacement;
 
+    /**
+     * The tag this replacer replaces, with its location in the document, or null
+     * if the bookmark has to be sought out.
+     */
+    public final Extractor.Tag tag;
+
     /**
      * The fields {@code bookmark} and {@code replacement} can be as arbitrarily
      * big as needed, but neither can be null, and bookmark cannot be an empty
@@ -27,6 +33,24 @@ public class Replacer {
      *                                  blank
      */
     public Replacer(String bookmark, String replacement) {
+        this(bookmark, replacement, null);
+    }
+
+    /**
+     * Creates a replacer of a tag whose location in the document is known. Its
+     * bookmark is the text of the tag.
+     * 
+     * @param tag         A tag, as extracted from the document
+     * @param replacement A replacement
+     * @throws IllegalArgumentException if replacement is null
+     * @see Replacers#locatedReplace(org.apache.poi.xwpf.usermodel.XWPFDocument,
+     *      java.util.List) Replacers.locatedReplace
+     */
+    public Replacer(Extractor.Tag tag, String replacement) {
+        this(tag.text, replacement, tag);
+    }
+
+    private Replacer(String bookmark, String replacement, Extractor.Tag tag) {
         if (bookmark == null) {
             throw new IllegalArgumentException("Bookmark cannot be null.");
         } else if (bookmark.isBlank()) {
@@ -37,6 +61,7 @@ public class Replacer {
 
         this.bookmark = bookmark;
         this.replacement = replacement;
+        this.tag = tag;
     }
 
     /**
@@ -59,4 +84,15 @@ public class Replacer {
     public static Replacer of(String bookmark, String replacement) {
         return new Replacer(bookmark, replacement);
     }
+
+    /**
+     * Returns a replacer of the supplied tag and replacement
+     * 
+     * @param tag         A tag, with its location
+     * @param replacement A replacement string
+     * @return A replacer
+     */
+    public static Replacer of(Extractor.Tag tag, String replacement) {
+        return new Replacer(tag, replacement);
+    }
 }
@@ -6,12 +6,14 @@ import java.math.BigDecimal;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
-import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.RandomAccess;
 
 import org.apache.poi.xwpf.usermodel.IBodyElement;
 import org.apache.poi.xwpf.usermodel.XWPFDocument;
@@ -19,6 +21,9 @@ import org.apache.poi.xwpf.usermodel.XWPFParagraph;
 import org.apache.poi.xwpf.usermodel.XWPFRun;
 import org.apache.poi.xwpf.usermodel.XWPFSDT;
 import org.apache.poi.xwpf.usermodel.XWPFTable;
+import org.apache.poi.xwpf.usermodel.XWPFTableCell;
+import org.apache.poi.xwpf.usermodel.XWPFTableRow;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTRPr;
 
 import com.forenzix.interpreter.Interpreter;
 import com.forenzix.interpreter.Interpreter.MemberAccessor;
@@ -113,7 +118,7 @@ public final class Replacers {
             }
 
             // Update our variables so we can have persistance across tag executions.
-            vars.putAll(interpreter.getGlobalScopeVariables());
+            vars.putAll(interpreter.getGlobalScopeWrites());
         }
 
         return replacers;
@@ -165,6 +170,9 @@ public final class Replacers {
      * replacers
      * have been applied onto the document, an error is raised.
      * <p>
+     * The document is traversed once. Every paragraph is searched for as many
+     * consecutive tags as it contains, then all of them are replaced at once.
+     * <p>
      * This function relies on the output of {@link Extractor#generateReplacers
      * (XWPFDocument, Claim, IContext) Extractor.generateReplacers}.
      * 
@@ -172,47 +180,86 @@ public final class Replacers {
      * @param replacers the list of replacers that need to be applied
      */
     public static void orderedReplace(XWPFDocument doc, List<Replacer> replacers) {
+        // Replacers are looked up by index, which must be cheap.
+        final List<Replacer> indexed = replacers instanceof RandomAccess ? replacers : new ArrayList<>(replacers);
+
         final int count;
-        if ((count = orderedReplace(doc.getBodyElements(), replacers)) < replacers.size()) {
+        if ((count = orderedReplace(doc.getBodyElements(), indexed, 0)) < indexed.size()) {
             throw new RuntimeException("The replacers list has not been fully exhausted: " +
-                    (replacers.size() - count) + "/" + replacers.size() + " remain.");
+                    (indexed.size() - count) + "/" + indexed.size() + " remain.");
+        }
+    }
+
+    /**
+     * Apply every {@code Replacer} object from the specified list at the location
+     * of its tag, as extracted from the document by
+     * {@link Extractor#extractTags(XWPFDocument, java.util.function.Consumer)
+     * Extractor.extractTags}. Nothing is searched for: every replacer goes straight
+     * to the runs of its tag.
+     * <p>
+     * The document must not have been changed since its tags were extracted.
+     * Tags are replaced last to first, and replacing a tag only changes runs from
+     * its first run on, so the tags before it stay where they were found. Tags
+     * without a replacer are left as they are.
+     * 
+     * @param doc       the document the tags were extracted from
+     * @param replacers the replacers of some of the tags of the document, in
+     *                  document order, each with the location of its tag
+     * @throws IllegalArgumentException if a replacer has no location, or its tag
+     *                                  spans paragraphs
+     */
+    public static void locatedReplace(XWPFDocument doc, List<Replacer> replacers) {
+        for (ListIterator<Replacer> it = replacers.listIterator(replacers.size()); it.hasPrevious();) {
+            final Replacer replacer = it.previous();
+            final Extractor.Tag tag = replacer.tag;
+            if (tag == null) {
+                throw new IllegalArgumentException("Replacer " + replacer + " has no location.");
+            } else if (tag.spansParagraphs()) {
+                throw new IllegalArgumentException("Tag " + tag + " spans paragraphs, and cannot be replaced.");
+            }
+
+            replace(paragraph(doc, tag.path), new Occurrence(replacer, tag.firstRun, tag.lastRun, tag.start, tag.end));
+        }
+    }
+
+    // The paragraph at the end of a path of body element, row and cell indexes
+    private static XWPFParagraph paragraph(XWPFDocument doc, int[] path) {
+        IBodyElement element = doc.getBodyElements().get(path[0]);
+        for (int i = 1; i < path.length; i += 3) {
+            final XWPFTableCell cell = ((XWPFTable) element).getRow(path[i]).getTableCells().get(path[i + 1]);
+            element = cell.getBodyElements().get(path[i + 2]);
         }
+        return (XWPFParagraph) element;
     }
 
     /**
      * Traverse through the specified body elements apply as many {@code Replacer}
-     * objects from the specified list in order. The body elements can be children
-     * of any IBody element, which allows this function to be called recursively
-     * from within complex nodes in the document tree. A count is kept of all the
-     * replacers consumed so that a potential recursive callee can make proper
-     * adjustments or checks.
+     * objects from the specified list in order, starting from the replacer at
+     * index r. The body elements can be children of any IBody element, which allows
+     * this function to be called recursively from within complex nodes in the
+     * document tree.
      * <p>
      * This function relies on the output of {@link Extractor#generateReplacers
      * (XWPFDocument, Claim, IContext) Extractor.generateReplacers}.
      * 
      * @param elements  the list of body elements to traverse with replaceable tags
      * @param replacers the list of replacers that need to be applied
+     * @param r         the index of the next replacer to apply
+     * @return the index of the next replacer to apply after the elements
      */
-    private static int orderedReplace(List<IBodyElement> elements, List<Replacer> replacers) {
+    private static int orderedReplace(List<IBodyElement> elements, List<Replacer> replacers, int r) {
         /*
          * The algorithm for traversing the elements and replacers simultaneously
          * is as follows:
          * 
          * r is the current Replacer
-         * e is the current IBodyElement
-         * While we still have elements and replacers:
-         *     If e is a simple element and r can be found in it:
-         *         replace r in e, then consume r
+         * For every element e, while we still have replacers:
+         *     If e is a simple element:
+         *         consume every replacer r, in order, that can be found in e
          *     Else if e is a complex element:
-         *         ce is the list of terminal nodes in e  (e.g. cells in a table)
-         *         For every element c in ce:
-         *             rs is the list of remaining replacers starting from r
-         *             recursively call orderedReplace on c and rs
-         *             n is the number of replacers consumed in the call
-         *             consume r, n times
-         *         consume e
-         *     Otherwise:
-         *         consume e
+         *         For every terminal node c in e (e.g. cells in a table):
+         *             recursively call orderedReplace on c starting from r
+         *             continue from the replacer the call stopped at
          * Return index of r
          * 
          * As of now, the simple body element types are Paragraphs and Structured
@@ -222,52 +269,41 @@ public final class Replacers {
          * The only complex body elements are Tables. Every row, then cell is
          * processed and ran through orderedReplace.
          */
-
-        // Indexes of the current Replacer and Body Element respectively.
-        int r = 0, e = 0;
-        while (e < elements.size() && r < replacers.size()) {
+        for (int e = 0; e < elements.size() && r < replacers.size(); e += 1) {
             final IBodyElement i = elements.get(e);
 
-            // Since SDT elements are unchangeable, we simply consume the tag if present.
-            if (i instanceof XWPFSDT && ((XWPFSDT) i).getContent().getText().contains(replacers.get(r).bookmark))
-                r += 1;
+            // Since SDT elements are unchangeable, we simply consume the tags if present.
+            if (i instanceof XWPFSDT) {
+                final String text = ((XWPFSDT) i).getContent().getText();
+                while (r < replacers.size() && text.contains(replacers.get(r).bookmark))
+                    r += 1;
+            }
 
-            // Otherwise, attempt to apply the replacer in the paragraph
-            else if (i instanceof XWPFParagraph && paragraphReplace((XWPFParagraph) i, replacers.get(r)))
-                r += 1;
+            // Otherwise, apply as many replacers as possible in the paragraph
+            else if (i instanceof XWPFParagraph)
+                r = paragraphReplace((XWPFParagraph) i, replacers, r);
 
-            // Otherwise, attempt to explore all contents of cells of the table
+            // Otherwise, explore all contents of cells of the table
             else if (i instanceof XWPFTable) {
-                // Keep track of the consumed replacers from recursive calls
-                final SimpleEntry<String, Integer> newr = new SimpleEntry<>("r", r);
-
-                // Notice that only a part of the replacer list is passed.
-                ((XWPFTable) i).getRows().forEach(row -> row.getTableCells().forEach(
-                        cell -> newr.setValue(newr.getValue() +
-                                orderedReplace(cell.getBodyElements(),
-                                        replacers.subList(newr.getValue(), replacers.size())))));
-
-                // Update to account for the consumed replacers
-                r = newr.getValue();
-                e += 1;
+                for (XWPFTableRow row : ((XWPFTable) i).getRows())
+                    for (XWPFTableCell cell : row.getTableCells())
+                        r = orderedReplace(cell.getBodyElements(), replacers, r);
             }
-
-            // Otherwise, consume the element
-            else
-                e += 1;
         }
 
         return r;
     }
 
     /**
-     * Replace a single tag in the specified paragraph. The replacement is applied
-     * only on the first occurance of the tag in the pararaph. This function will
-     * always introduce new runs in the paragraph to represent the replacement.
-     * All new runs are copies of the first run that contained one or more
-     * character from the tag. The function {@link Replacers#genRuns(XWPFRun,
-     * String) Replacers.genRuns} is used to produce the new, identically formatted
-     * runs.
+     * Replace consecutive tags in the specified paragraph, starting with the tag
+     * of the replacer at index r. Each tag is sought after the previous one, and
+     * the search stops at the first tag that cannot be found. Every tag is
+     * replaced where it is first found. Replacing a tag will always introduce new
+     * runs in the paragraph to represent the replacement. All new runs are copies
+     * of the first run that contained one or more character from the tag. The
+     * function {@link Replacers#genRuns(XWPFParagraph, int, XWPFRun, String)
+     * Replacers.genRuns} is
+     * used to produce the new, identically formatted runs.
      * <p>
      * <i>Tags</i> are bookmark strings that represent a target for a replacer to
      * plant
@@ -281,11 +317,12 @@ public final class Replacers {
      * {@link Extractor#generateReplacers(XWPFDocument, Claim, IContext)
      * Extractor.generateReplacers}, otherwise, it might produce unexpected results.
      * 
-     * @param p        the specified paragraph where a tag could be found
-     * @param replacer the replacer that will be applied on the found tag
-     * @return true if the tag was found and replaced, false otherwise
+     * @param p         the specified paragraph where tags could be found
+     * @param replacers the replacers that will be applied on the found tags
+     * @param r         the index of the first replacer to apply
+     * @return the index of the first replacer that was not applied
      */
-    private static boolean paragraphReplace(XWPFParagraph p, Replacer replacer) {
+    private static int paragraphReplace(XWPFParagraph p, List<Replacer> replacers, int r) {
 
         /*
          * Important Disclaimer:
@@ -310,96 +347,143 @@ public final class Replacers {
          * slightly.
          */
 
-        final List<Integer> cover = new LinkedList<>();
-        final char[] atag = replacer.bookmark.toCharArray();
+        // The text of every run is read once, and all the tags are located in it
+        // before anything is replaced.
+        final List<XWPFRun> runs = p.getRuns();
+        final String[] texts = new String[runs.size()];
+        for (int j = 0; j < texts.length; j += 1) {
+            texts[j] = runs.get(j).text();
+        }
 
-        /*
-         * The algorithm for replacing the tag in a paragraph is as follows:
-         * 
-         * Find as big a prefix of the tag t in p as possible. This is because if
-         * the biggest part of the tag we find is not the whole of the tag, it
-         * means the tag does not exist in p, and we abort. (This will be covered
-         * in more detail)
-         * 
-         * Find cover, start, s, and i where:
-         * - cover is the list of runs which collectively contain prefix
-         * - start is the location of prefix in the first run of cover
-         * - s is the length prefix
-         * - i is the location of the end of prefix in cover
-         * 
-         * If s < len(tag):
-         * return false
-         * 
-         * f is the first run in cover
-         * l is the last run in cover
-         * text is the text content of f
-         * 
-         * Delete from f all characters after start
-         * If len(cover) > 1:
-         *     Delete from l all characters after i
-         *     Delete all runs between f and l
-         * 
-         * Else If i != len(text)
-         * replacement += all characters in f after i
-         * 
-         * Generate runs after f that represent the replacement
-         */
-        int i = 0, s = 0, start = -1;
-        for (int j = 0; j < p.getRuns().size() && s < atag.length; j += 1) {
-            final char[] arun = p.getRuns().get(j).text().toCharArray();
+        final List<Occurrence> found = new ArrayList<>();
+        int run = 0, offset = 0;
+        for (Occurrence o; r < replacers.size() && (o = find(texts, replacers.get(r), run, offset)) != null; r += 1) {
+            found.add(o);
+            run = o.last;
+            offset = o.end;
+        }
+
+        // Tags are replaced last to first, so that replacing a tag never moves the
+        // runs of the tags before it.
+        for (int j = found.size() - 1; j >= 0; j -= 1) {
+            replace(p, found.get(j));
+        }
+
+        return r;
+    }
+
+    // The location of a tag in a paragraph: the runs it covers, where it starts in
+    // the first run, and where it ends in the last one.
+    private static final class Occurrence {
+        final Replacer replacer;
+        final int first, last, start, end;
+
+        Occurrence(Replacer replacer, int first, int last, int start, int end) {
+            this.replacer = replacer;
+            this.first = first;
+            this.last = last;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /*
+     * The algorithm for finding a tag in a paragraph is as follows:
+     * 
+     * Find as big a prefix of the tag t in p as possible, from the given run and
+     * offset. This is because if the biggest part of the tag we find is not the
+     * whole of the tag, it means the tag does not exist in p, and we abort.
+     * 
+     * Find cover, start, s, and i where:
+     * - cover is the range of runs which collectively contain prefix
+     * - start is the location of prefix in the first run of cover
+     * - s is the length prefix
+     * - i is the location of the end of prefix in cover
+     * 
+     * If s < len(tag):
+     * return nothing
+     */
+    private static Occurrence find(String[] texts, Replacer replacer, int run, int offset) {
+        final String tag = replacer.bookmark;
+        int i = 0, s = 0, start = -1, first = -1, last = -1;
+        for (int j = run; j < texts.length && s < tag.length(); j += 1) {
+            final String text = texts[j];
 
             // Find how many characters in the run match the tag
             // This loop runs until the characters in either run or tag are depleted
-            for (i = 0; i < arun.length && s < atag.length; s = atag[s] == arun[i++] ? s + 1 : 0);
+            for (i = j == run ? offset : 0; i < text.length() && s < tag.length();
+                    s = tag.charAt(s) == text.charAt(i++) ? s + 1 : 0);
 
             // If we have matched one or more characters, we mark this position as start
             if (s != 0) {
-                cover.add(j);
-                start = start == -1 ? i - s : start;
+                if (first == -1) {
+                    first = j;
+                    start = i - s;
+                }
+                last = j;
             }
 
             // Otherwise, we reset our search
             else {
-                cover.clear();
-                start = -1;
+                first = last = start = -1;
             }
         }
 
         // If the length of prefix does not match the length of the tag, abort.
-        if (cover.isEmpty() || s != atag.length)
-            return false;
+        if (first == -1 || s != tag.length())
+            return null;
+
+        return new Occurrence(replacer, first, last, start, i);
+    }
 
-        final XWPFRun first = p.getRuns().get(cover.get(0));
+    /*
+     * The algorithm for replacing a tag found in a paragraph is as follows:
+     * 
+     * f is the first run in cover
+     * l is the last run in cover
+     * text is the text content of f
+     * 
+     * Delete from f all characters after start
+     * If len(cover) > 1:
+     *     Delete from l all characters after i
+     *     Delete all runs between f and l
+     * 
+     * Else If i != len(text)
+     * replacement += all characters in f after i
+     * 
+     * Generate runs after f that represent the replacement
+     */
+    private static void replace(XWPFParagraph p, Occurrence o) {
+        final XWPFRun first = p.getRuns().get(o.first);
         final String text = first.text();
 
         // Remove start of tag from the first run
-        first.setText(text.substring(0, start), 0);
-        String rep = replacer.replacement;
+        first.setText(text.substring(0, o.start), 0);
+        String rep = o.replacer.replacement;
 
         // If more than one run
-        if (cover.size() > 1) {
+        if (o.last != o.first) {
             // Remove the end of the tag from the last run
-            final XWPFRun last = p.getRuns().get(cover.get(cover.size() - 1));
-            last.setText(last.text().substring(i), 0);
+            final XWPFRun last = p.getRuns().get(o.last);
+            last.setText(last.text().substring(o.end), 0);
 
             // Delete all runs in between
-            for (int c = cover.size() - 1; (c -= 1) > 0; p.removeRun(cover.get(c)));
+            for (int c = o.last; (c -= 1) > o.first; p.removeRun(c));
         }
 
-        // Otherwise, if i is not at the end of the run
-        else if (i != text.length()) {
-            // Save the characters after i from deletion
-            rep += text.substring(i);
+        // Otherwise, if the tag does not end the run
+        else if (o.end != text.length()) {
+            // Save the characters after the tag from deletion
+            rep += text.substring(o.end);
         }
 
         // Clone the first run and fill with our replacement text
-        genRuns(first, rep);
-        return true;
+        genRuns(p, o.first + 1, first, rep);
     }
 
     /**
      * Generate multiple runs with formatting identical to the original run
-     * specified.
+     * specified, and insert them in the paragraph from the specified index on.
      * The number of new runs generated is based on the number of lines in
      * <i>text</i>.
      * If text contains N lines, 2N - 1 runs will be generated, one for each line
@@ -407,48 +491,56 @@ public final class Replacers {
      * provided
      * text is blank or null, no runs will be produced.
      * <p>
-     * This function uses {@link Preprocessor#cloneRun(XWPFRun, XWPFRun)
-     * Preprocessor.cloneRun}.
+     * The new runs are formatted as {@link Preprocessor#cloneRun(XWPFRun, XWPFRun)
+     * Preprocessor.cloneRun} would, but the formatting of the original run is
+     * read only once, and runs are inserted at a cursor rather than after a run
+     * that has to be looked up, so that generating long blocks of text takes
+     * linear time.
      * 
+     * @param p      paragraph in which the runs will be inserted
+     * @param index  position of the first new run in the paragraph
      * @param origin run from which new runs will be cloned
      * @param text   contents of the newly generated runs
-     * @throws IllegalArgumentException if the parent of origin isn't a paragraph
      * @see {@link Preprocessor#cloneRun(XWPFRun, XWPFRun) Preprocessor.cloneRun}
      */
-    private static void genRuns(XWPFRun origin, String text) {
-
-        // The run has to be a child of a paragraph
-        if (!(origin.getParent() instanceof XWPFParagraph)) {
-            throw new IllegalArgumentException(
-                    String.format("The given origin run is a child of %s which is not a subclass of XWPFParagraph.",
-                            origin.getParent().getClass().getName()));
-        }
+    private static void genRuns(XWPFParagraph p, int index, XWPFRun origin, String text) {
 
         // Text has to be non-null and non-blank
         if (text == null || text.isBlank())
             return;
 
-        final XWPFParagraph p = (XWPFParagraph) origin.getParent();
         final Iterator<String> itr = text.lines().iterator();
-        XWPFRun run;
 
         // If the string is blank, no runs will be generated.
         if (!itr.hasNext())
             return;
 
+        // The formatting shared by every new run
+        final CTRPr rPr = origin.getCTR().getRPr();
+        final int brs = origin.text().isBlank() ? origin.getCTR().sizeOfBrArray() : 0;
+
         // Generate a run for the first line of content
-        run = Preprocessor.cloneRun(p.insertNewRun(p.getRuns().indexOf(origin) + 1), origin);
-        run.setText(itr.next(), 0);
+        emitRun(p, index++, rPr, brs).setText(itr.next(), 0);
         while (itr.hasNext()) {
 
             // Generate a run for line break
-            run = Preprocessor.cloneRun(p.insertNewRun(p.getRuns().indexOf(run) + 1), origin);
-            run.setText("", 0);
-            run.addBreak();
+            final XWPFRun br = emitRun(p, index++, rPr, brs);
+            br.setText("", 0);
+            br.addBreak();
 
             // Generate a run for Nth line
-            run = Preprocessor.cloneRun(p.insertNewRun(p.getRuns().indexOf(run) + 1), origin);
-            run.setText(itr.next(), 0);
+            emitRun(p, index++, rPr, brs).setText(itr.next(), 0);
         }
     }
+
+    // Insert a run formatted with the given properties at the given index. The
+    // run's text must be set before anything else, so that it comes first.
+    private static XWPFRun emitRun(XWPFParagraph p, int index, CTRPr rPr, int brs) {
+        final XWPFRun run = p.insertNewRun(index);
+        run.getCTR().addNewRPr().set(rPr);
+        run.setText("", 0);
+        for (int i = 0; i < brs; i += 1)
+            run.getCTR().addNewBr();
+        return run;
+    }
 }
@@ -0,0 +1,79 @@
+package com.forenzix.word;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+
+import com.forenzix.common.MappedZip;
+
+/**
+ * A template document, inflated once and held in memory as an uncompressed
+ * (stored) zip archive. Every package opened from the prototype is read from
+ * that archive, so opening a copy of the template costs a memory copy of its
+ * parts rather than inflating every one of them.
+ * <p>
+ * Packages are opened through the public {@link OPCPackage#open(java.io.InputStream)
+ * OPCPackage.open}, which gives every report a package of its own, in memory
+ * and modifiable. The XML of the document is still parsed once per report:
+ * XWPFDocument builds its paragraphs and tables while parsing document.xml, and
+ * cannot be created from a parsed or copied CTDocument1.
+ *
+ * @see CompiledTemplate
+ */
+final class TemplatePrototype {
+
+    private final byte[] stored;
+
+    private TemplatePrototype(byte[] stored) {
+        this.stored = stored;
+    }
+
+    /**
+     * Inflates every part of a template document into a stored archive.
+     *
+     * @param zip the template document
+     * @return the prototype
+     * @throws IOException if a part cannot be read
+     */
+    static TemplatePrototype of(MappedZip zip) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final ZipOutputStream stored = new ZipOutputStream(out)) {
+            stored.setMethod(ZipOutputStream.STORED);
+            for (String name : zip.names()) {
+                final byte[] part = zip.read(name);
+                final CRC32 crc = new CRC32();
+                crc.update(part);
+
+                final ZipEntry entry = new ZipEntry(name);
+                entry.setSize(part.length);
+                entry.setCompressedSize(part.length);
+                entry.setCrc(crc.getValue());
+                stored.putNextEntry(entry);
+                stored.write(part);
+                stored.closeEntry();
+            }
+        }
+        return new TemplatePrototype(out.toByteArray());
+    }
+
+    /**
+     * Opens a new, modifiable package identical to the template. Changes to the
+     * package do not affect the prototype.
+     *
+     * @return a new package
+     * @throws IOException if the template is not a valid package
+     */
+    OPCPackage open() throws IOException {
+        try {
+            return OPCPackage.open(new ByteArrayInputStream(stored));
+        } catch (InvalidFormatException e) {
+            throw new IOException("Not a template document", e);
+        }
+    }
+}